@@ -0,0 +1,144 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Lox's two kinds of number and the rules for mixing them.
+ *
+ * Numbers are Doubles unless they are integers: Longs, written with an L
+ * suffix (42L) or made by integer operations. + - * % and ~/ (division
+ * rounding toward zero, since // starts a comment) give an integer when
+ * both operands are integers and a double otherwise. Integers are 64-bit
+ * two's complement and wrap around on overflow like Java's long, so hashes
+ * and other bit arithmetic stay exact; use doubles for numbers that may
+ * outgrow them. / always gives a double. The
+ * bitwise operators & | ^ << >> take integers, or doubles holding an
+ * integer, and give an integer; shifts use the low six bits of the count
+ * like Java's. Comparisons and == compare the values, so 1L == 1.
+ *
+ * Small integers are boxed from a cache, so loop counters and indexes
+ * don't allocate.
+ */
+final class Arithmetic {
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1024;
+    private static final Long[] CACHE = new Long[CACHE_HIGH - CACHE_LOW];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) { CACHE[i] = (long) (i + CACHE_LOW); }
+    }
+
+    private Arithmetic() {}
+
+    static Long box(long value) {
+        if (value >= CACHE_LOW && value < CACHE_HIGH) { return CACHE[(int) value - CACHE_LOW]; }
+        return value;
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Double || value instanceof Long;
+    }
+
+    /** number, a Double or Long, as a double. */
+    static double toDouble(Object number) {
+        return number instanceof Long ? (double) (Long) number : (Double) number;
+    }
+
+    static Long add(long a, long b) {
+        return box(a + b);
+    }
+
+    static Long subtract(long a, long b) {
+        return box(a - b);
+    }
+
+    static Long multiply(long a, long b) {
+        return box(a * b);
+    }
+
+    /** a ~/ b for a non-zero b. Long.MIN_VALUE ~/ -1 wraps to itself. */
+    static Long divide(long a, long b) {
+        return box(a / b);
+    }
+
+    static Long negate(long a) {
+        return box(-a);
+    }
+
+    /** An operand of a bitwise operator as an integer. */
+    static long toInteger(Token operator, Object operand) {
+        if (operand instanceof Long) { return (Long) operand; }
+        if (operand instanceof Double) {
+            double value = (Double) operand;
+            if (value == Math.rint(value) && value >= -0x1p63 && value < 0x1p63) { return (long) value; }
+        }
+        throw new RuntimeError(operator, "Operands must be integers.");
+    }
+
+    /** left op right where either is a double; the ints are widened. */
+    static Object doubleArithmetic(Token operator, double left, double right) {
+        switch (operator.type) {
+            case MINUS:       return left - right;
+            case STAR:        return left * right;
+            case SLASH:       return left / right;
+            case PERCENT:     return left % right;
+            case TILDE_SLASH: {
+                double quotient = left / right;
+                return quotient < 0 ? Math.ceil(quotient) : Math.floor(quotient);
+            }
+            default:          throw new IllegalArgumentException(operator.type.toString());
+        }
+    }
+
+    /** left op right for the comparison operators and two numbers. */
+    static boolean compare(Token operator, Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (Long) left;
+            long b = (Long) right;
+            switch (operator.type) {
+                case GREATER:       return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS:          return a < b;
+                default:            return a <= b;
+            }
+        }
+        if (left instanceof Long || right instanceof Long) {
+            // an integer and a double, compared exactly like equal() does
+            double number = toDouble(left instanceof Long ? right : left);
+            if (Double.isNaN(number)) { return false; }
+            int order = left instanceof Long ? compare((Long) left, number)
+                    : -compare((Long) right, number);
+            switch (operator.type) {
+                case GREATER:       return order > 0;
+                case GREATER_EQUAL: return order >= 0;
+                case LESS:          return order < 0;
+                default:            return order <= 0;
+            }
+        }
+        double a = (Double) left;
+        double b = (Double) right;
+        switch (operator.type) {
+            case GREATER:       return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS:          return a < b;
+            default:            return a <= b;
+        }
+    }
+
+    /**
+     * The sign of integer - number, without rounding integer to a double
+     * first. number is not NaN.
+     */
+    private static int compare(long integer, double number) {
+        if (number >= 0x1p63) { return -1; }
+        if (number < -0x1p63) { return 1; }
+        long whole = (long) number;
+        if (integer != whole) { return Long.compare(integer, whole); }
+        // the same whole part; what number has after the point decides
+        double fraction = number - whole;
+        return fraction > 0 ? -1 : fraction < 0 ? 1 : 0;
+    }
+
+    /** True if an integer and a double are the same number. */
+    static boolean equal(long integer, double number) {
+        return number == (double) integer && number < 0x1p63 && (long) number == integer;
+    }
+}
@@ -0,0 +1,691 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expr and Stmt trees packed into one int array.
+ *
+ * A node is its kind followed by one slot per field: a child node index
+ * (-1 for none), a list index or a constant index. A Token takes two
+ * slots, its type and lexeme constant packed into one and its line in the
+ * other. A list is its size followed by its elements. Children are
+ * written before their parents, so the root list of top-level statements
+ * comes last. Lexemes and literal values are interned in constants.
+ * Variables, assignments, this and super keep their resolved depth in
+ * their last slot, and gets and sets their struct field slot hint, so a
+ * resolved tree round trips.
+ *
+ * Generated by GenerateAst.
+ */
+final class Ast {
+  static final int ASSIGN_EXPR = 0;
+  static final int BINARY_EXPR = 1;
+  static final int CALL_EXPR = 2;
+  static final int GET_EXPR = 3;
+  static final int GROUPING_EXPR = 4;
+  static final int LITERAL_EXPR = 5;
+  static final int LOGICAL_EXPR = 6;
+  static final int SET_EXPR = 7;
+  static final int SUPER_EXPR = 8;
+  static final int THIS_EXPR = 9;
+  static final int UNARY_EXPR = 10;
+  static final int VARIABLE_EXPR = 11;
+  static final int BREAK_STMT = 12;
+  static final int BLOCK_STMT = 13;
+  static final int CLASS_STMT = 14;
+  static final int EXPRESSION_STMT = 15;
+  static final int FUNCTION_STMT = 16;
+  static final int IF_STMT = 17;
+  static final int PRINT_STMT = 18;
+  static final int RETURN_STMT = 19;
+  static final int STRUCT_STMT = 20;
+  static final int VAR_STMT = 21;
+  static final int WHILE_STMT = 22;
+
+  interface Visitor<R> {
+    R visitAssignExpr(int node);
+    R visitBinaryExpr(int node);
+    R visitCallExpr(int node);
+    R visitGetExpr(int node);
+    R visitGroupingExpr(int node);
+    R visitLiteralExpr(int node);
+    R visitLogicalExpr(int node);
+    R visitSetExpr(int node);
+    R visitSuperExpr(int node);
+    R visitThisExpr(int node);
+    R visitUnaryExpr(int node);
+    R visitVariableExpr(int node);
+    R visitBreakStmt(int node);
+    R visitBlockStmt(int node);
+    R visitClassStmt(int node);
+    R visitExpressionStmt(int node);
+    R visitFunctionStmt(int node);
+    R visitIfStmt(int node);
+    R visitPrintStmt(int node);
+    R visitReturnStmt(int node);
+    R visitStructStmt(int node);
+    R visitVarStmt(int node);
+    R visitWhileStmt(int node);
+  }
+
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+  private static final int TYPE_SHIFT = 24;
+  private static final int CONSTANT_MASK = (1 << TYPE_SHIFT) - 1;
+
+  final int[] nodes;
+  final Object[] constants;
+  /** list of the top-level statements */
+  final int root;
+
+  Ast(int[] nodes, Object[] constants, int root) {
+    this.nodes = nodes;
+    this.constants = constants;
+    this.root = root;
+  }
+
+  static Ast encode(List<Stmt> statements) {
+    Encoder encoder = new Encoder();
+    int root = encoder.stmtList(statements);
+    return new Ast(Arrays.copyOf(encoder.nodes, encoder.count),
+        encoder.constants.toArray(), root);
+  }
+
+  /** Rebuild the object tree. */
+  List<Stmt> decode() {
+    return new Decoder().list(root);
+  }
+
+  int kind(int node) {
+    return nodes[node];
+  }
+
+  <R> R accept(int node, Visitor<R> visitor) {
+    switch (nodes[node]) {
+      case ASSIGN_EXPR: return visitor.visitAssignExpr(node);
+      case BINARY_EXPR: return visitor.visitBinaryExpr(node);
+      case CALL_EXPR: return visitor.visitCallExpr(node);
+      case GET_EXPR: return visitor.visitGetExpr(node);
+      case GROUPING_EXPR: return visitor.visitGroupingExpr(node);
+      case LITERAL_EXPR: return visitor.visitLiteralExpr(node);
+      case LOGICAL_EXPR: return visitor.visitLogicalExpr(node);
+      case SET_EXPR: return visitor.visitSetExpr(node);
+      case SUPER_EXPR: return visitor.visitSuperExpr(node);
+      case THIS_EXPR: return visitor.visitThisExpr(node);
+      case UNARY_EXPR: return visitor.visitUnaryExpr(node);
+      case VARIABLE_EXPR: return visitor.visitVariableExpr(node);
+      case BREAK_STMT: return visitor.visitBreakStmt(node);
+      case BLOCK_STMT: return visitor.visitBlockStmt(node);
+      case CLASS_STMT: return visitor.visitClassStmt(node);
+      case EXPRESSION_STMT: return visitor.visitExpressionStmt(node);
+      case FUNCTION_STMT: return visitor.visitFunctionStmt(node);
+      case IF_STMT: return visitor.visitIfStmt(node);
+      case PRINT_STMT: return visitor.visitPrintStmt(node);
+      case RETURN_STMT: return visitor.visitReturnStmt(node);
+      case STRUCT_STMT: return visitor.visitStructStmt(node);
+      case VAR_STMT: return visitor.visitVarStmt(node);
+      case WHILE_STMT: return visitor.visitWhileStmt(node);
+    }
+    throw new IllegalArgumentException("No node at " + node + ".");
+  }
+
+  int size(int list) {
+    return nodes[list];
+  }
+
+  /** Element i of a list of nodes. */
+  int node(int list, int i) {
+    return nodes[list + 1 + i];
+  }
+
+  /** Element i of a list of tokens. */
+  Token token(int list, int i) {
+    return tokenAt(list + 1 + 2 * i);
+  }
+
+  private Token tokenAt(int slot) {
+    int packed = nodes[slot];
+    return new Token(TOKEN_TYPES[packed >>> TYPE_SHIFT],
+        (String) constants[packed & CONSTANT_MASK], null, nodes[slot + 1]);
+  }
+
+  private Object constantAt(int slot) {
+    int index = nodes[slot];
+    return index < 0 ? null : constants[index];
+  }
+
+  // Assign Expr: Token name, Expr value, int depth
+  Token assignExprName(int node) { return tokenAt(node + 1); }
+  int assignExprValue(int node) { return nodes[node + 3]; }
+  int assignExprDepth(int node) { return nodes[node + 4]; }
+
+  // Binary Expr: Expr left, Token operator, Expr right
+  int binaryExprLeft(int node) { return nodes[node + 1]; }
+  Token binaryExprOperator(int node) { return tokenAt(node + 2); }
+  int binaryExprRight(int node) { return nodes[node + 4]; }
+
+  // Call Expr: Expr callee, Token paren, List<Expr> arguments
+  int callExprCallee(int node) { return nodes[node + 1]; }
+  Token callExprParen(int node) { return tokenAt(node + 2); }
+  int callExprArguments(int node) { return nodes[node + 4]; }
+
+  // Get Expr: Expr object, Token name, int slot
+  int getExprObject(int node) { return nodes[node + 1]; }
+  Token getExprName(int node) { return tokenAt(node + 2); }
+  int getExprSlot(int node) { return nodes[node + 4]; }
+
+  // Grouping Expr: Expr expression
+  int groupingExprExpression(int node) { return nodes[node + 1]; }
+
+  // Literal Expr: Object value
+  Object literalExprValue(int node) { return constantAt(node + 1); }
+
+  // Logical Expr: Expr left, Token operator, Expr right
+  int logicalExprLeft(int node) { return nodes[node + 1]; }
+  Token logicalExprOperator(int node) { return tokenAt(node + 2); }
+  int logicalExprRight(int node) { return nodes[node + 4]; }
+
+  // Set Expr: Expr object, Token name, Expr value, int slot
+  int setExprObject(int node) { return nodes[node + 1]; }
+  Token setExprName(int node) { return tokenAt(node + 2); }
+  int setExprValue(int node) { return nodes[node + 4]; }
+  int setExprSlot(int node) { return nodes[node + 5]; }
+
+  // Super Expr: Token keyword, Token method, int depth
+  Token superExprKeyword(int node) { return tokenAt(node + 1); }
+  Token superExprMethod(int node) { return tokenAt(node + 3); }
+  int superExprDepth(int node) { return nodes[node + 5]; }
+
+  // This Expr: Token keyword, int depth
+  Token thisExprKeyword(int node) { return tokenAt(node + 1); }
+  int thisExprDepth(int node) { return nodes[node + 3]; }
+
+  // Unary Expr: Token operator, Expr right
+  Token unaryExprOperator(int node) { return tokenAt(node + 1); }
+  int unaryExprRight(int node) { return nodes[node + 3]; }
+
+  // Variable Expr: Token name, int depth
+  Token variableExprName(int node) { return tokenAt(node + 1); }
+  int variableExprDepth(int node) { return nodes[node + 3]; }
+
+  // Break Stmt: Token keyword
+  Token breakStmtKeyword(int node) { return tokenAt(node + 1); }
+
+  // Block Stmt: List<Stmt> statements
+  int blockStmtStatements(int node) { return nodes[node + 1]; }
+
+  // Class Stmt: Token name, Expr.Variable superclass, List<Stmt.Function> methods
+  Token classStmtName(int node) { return tokenAt(node + 1); }
+  int classStmtSuperclass(int node) { return nodes[node + 3]; }
+  int classStmtMethods(int node) { return nodes[node + 4]; }
+
+  // Expression Stmt: Expr expression
+  int expressionStmtExpression(int node) { return nodes[node + 1]; }
+
+  // Function Stmt: Token name, List<Token> params, List<Stmt> body
+  Token functionStmtName(int node) { return tokenAt(node + 1); }
+  int functionStmtParams(int node) { return nodes[node + 3]; }
+  int functionStmtBody(int node) { return nodes[node + 4]; }
+
+  // If Stmt: Expr condition, Stmt thenBranch, Stmt elseBranch
+  int ifStmtCondition(int node) { return nodes[node + 1]; }
+  int ifStmtThenBranch(int node) { return nodes[node + 2]; }
+  int ifStmtElseBranch(int node) { return nodes[node + 3]; }
+
+  // Print Stmt: Expr expression
+  int printStmtExpression(int node) { return nodes[node + 1]; }
+
+  // Return Stmt: Token keyword, Expr value
+  Token returnStmtKeyword(int node) { return tokenAt(node + 1); }
+  int returnStmtValue(int node) { return nodes[node + 3]; }
+
+  // Struct Stmt: Token name, List<Token> fields
+  Token structStmtName(int node) { return tokenAt(node + 1); }
+  int structStmtFields(int node) { return nodes[node + 3]; }
+
+  // Var Stmt: Token name, Expr initializer
+  Token varStmtName(int node) { return tokenAt(node + 1); }
+  int varStmtInitializer(int node) { return nodes[node + 3]; }
+
+  // While Stmt: Expr condition, Stmt body
+  int whileStmtCondition(int node) { return nodes[node + 1]; }
+  int whileStmtBody(int node) { return nodes[node + 2]; }
+
+  private static final class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private int[] nodes = new int[256];
+    private int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    private int reserve(int slots) {
+      if (count + slots > nodes.length) {
+        nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, count + slots));
+      }
+      int start = count;
+      count += slots;
+      return start;
+    }
+
+    private int node(int kind, int slots) {
+      int node = reserve(1 + slots);
+      nodes[node] = kind;
+      return node;
+    }
+
+    private int child(Expr expr) {
+      return expr == null ? -1 : expr.accept(this);
+    }
+
+    private int child(Stmt stmt) {
+      return stmt == null ? -1 : stmt.accept(this);
+    }
+
+    private int exprList(List<? extends Expr> exprs) {
+      int[] children = new int[exprs.size()];
+      for (int i = 0; i < children.length; i++) { children[i] = child(exprs.get(i)); }
+      return nodeList(children);
+    }
+
+    private int stmtList(List<? extends Stmt> stmts) {
+      int[] children = new int[stmts.size()];
+      for (int i = 0; i < children.length; i++) { children[i] = child(stmts.get(i)); }
+      return nodeList(children);
+    }
+
+    private int nodeList(int[] children) {
+      int list = reserve(1 + children.length);
+      nodes[list] = children.length;
+      System.arraycopy(children, 0, nodes, list + 1, children.length);
+      return list;
+    }
+
+    private int tokenList(List<Token> tokens) {
+      int list = reserve(1 + 2 * tokens.size());
+      nodes[list] = tokens.size();
+      for (int i = 0; i < tokens.size(); i++) { putToken(list + 1 + 2 * i, tokens.get(i)); }
+      return list;
+    }
+
+    private void putToken(int slot, Token token) {
+      nodes[slot] = token.type.ordinal() << TYPE_SHIFT | constant(token.lexeme);
+      nodes[slot + 1] = token.line;
+    }
+
+    private int constant(Object value) {
+      if (value == null) { return -1; }
+      Integer index = constantIndexes.get(value);
+      if (index == null) {
+        index = constants.size();
+        if (index > CONSTANT_MASK) { throw new IllegalStateException("Too many constants."); }
+        constants.add(value);
+        constantIndexes.put(value, index);
+      }
+      return index;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+      int value = child(expr.value);
+      int node = node(ASSIGN_EXPR, 4);
+      putToken(node + 1, expr.name);
+      nodes[node + 3] = value;
+      nodes[node + 4] = expr.depth;
+      return node;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+      int left = child(expr.left);
+      int right = child(expr.right);
+      int node = node(BINARY_EXPR, 4);
+      nodes[node + 1] = left;
+      putToken(node + 2, expr.operator);
+      nodes[node + 4] = right;
+      return node;
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+      int callee = child(expr.callee);
+      int arguments = exprList(expr.arguments);
+      int node = node(CALL_EXPR, 4);
+      nodes[node + 1] = callee;
+      putToken(node + 2, expr.paren);
+      nodes[node + 4] = arguments;
+      return node;
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+      int object = child(expr.object);
+      int node = node(GET_EXPR, 4);
+      nodes[node + 1] = object;
+      putToken(node + 2, expr.name);
+      nodes[node + 4] = expr.slot;
+      return node;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+      int expression = child(expr.expression);
+      int node = node(GROUPING_EXPR, 1);
+      nodes[node + 1] = expression;
+      return node;
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+      int node = node(LITERAL_EXPR, 1);
+      nodes[node + 1] = constant(expr.value);
+      return node;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+      int left = child(expr.left);
+      int right = child(expr.right);
+      int node = node(LOGICAL_EXPR, 4);
+      nodes[node + 1] = left;
+      putToken(node + 2, expr.operator);
+      nodes[node + 4] = right;
+      return node;
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set expr) {
+      int object = child(expr.object);
+      int value = child(expr.value);
+      int node = node(SET_EXPR, 5);
+      nodes[node + 1] = object;
+      putToken(node + 2, expr.name);
+      nodes[node + 4] = value;
+      nodes[node + 5] = expr.slot;
+      return node;
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super expr) {
+      int node = node(SUPER_EXPR, 5);
+      putToken(node + 1, expr.keyword);
+      putToken(node + 3, expr.method);
+      nodes[node + 5] = expr.depth;
+      return node;
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This expr) {
+      int node = node(THIS_EXPR, 3);
+      putToken(node + 1, expr.keyword);
+      nodes[node + 3] = expr.depth;
+      return node;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+      int right = child(expr.right);
+      int node = node(UNARY_EXPR, 3);
+      putToken(node + 1, expr.operator);
+      nodes[node + 3] = right;
+      return node;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+      int node = node(VARIABLE_EXPR, 3);
+      putToken(node + 1, expr.name);
+      nodes[node + 3] = expr.depth;
+      return node;
+    }
+
+    @Override
+    public Integer visitBreakStmt(Stmt.Break stmt) {
+      int node = node(BREAK_STMT, 2);
+      putToken(node + 1, stmt.keyword);
+      return node;
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+      int statements = stmtList(stmt.statements);
+      int node = node(BLOCK_STMT, 1);
+      nodes[node + 1] = statements;
+      return node;
+    }
+
+    @Override
+    public Integer visitClassStmt(Stmt.Class stmt) {
+      int superclass = child(stmt.superclass);
+      int methods = stmtList(stmt.methods);
+      int node = node(CLASS_STMT, 4);
+      putToken(node + 1, stmt.name);
+      nodes[node + 3] = superclass;
+      nodes[node + 4] = methods;
+      return node;
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+      int expression = child(stmt.expression);
+      int node = node(EXPRESSION_STMT, 1);
+      nodes[node + 1] = expression;
+      return node;
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+      int params = tokenList(stmt.params);
+      int body = stmtList(stmt.body);
+      int node = node(FUNCTION_STMT, 4);
+      putToken(node + 1, stmt.name);
+      nodes[node + 3] = params;
+      nodes[node + 4] = body;
+      return node;
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+      int condition = child(stmt.condition);
+      int thenBranch = child(stmt.thenBranch);
+      int elseBranch = child(stmt.elseBranch);
+      int node = node(IF_STMT, 3);
+      nodes[node + 1] = condition;
+      nodes[node + 2] = thenBranch;
+      nodes[node + 3] = elseBranch;
+      return node;
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+      int expression = child(stmt.expression);
+      int node = node(PRINT_STMT, 1);
+      nodes[node + 1] = expression;
+      return node;
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+      int value = child(stmt.value);
+      int node = node(RETURN_STMT, 3);
+      putToken(node + 1, stmt.keyword);
+      nodes[node + 3] = value;
+      return node;
+    }
+
+    @Override
+    public Integer visitStructStmt(Stmt.Struct stmt) {
+      int fields = tokenList(stmt.fields);
+      int node = node(STRUCT_STMT, 3);
+      putToken(node + 1, stmt.name);
+      nodes[node + 3] = fields;
+      return node;
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+      int initializer = child(stmt.initializer);
+      int node = node(VAR_STMT, 3);
+      putToken(node + 1, stmt.name);
+      nodes[node + 3] = initializer;
+      return node;
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+      int condition = child(stmt.condition);
+      int body = child(stmt.body);
+      int node = node(WHILE_STMT, 2);
+      nodes[node + 1] = condition;
+      nodes[node + 2] = body;
+      return node;
+    }
+  }
+
+  private final class Decoder implements Visitor<Object> {
+    @SuppressWarnings("unchecked")
+    private <T> T child(int node) {
+      return node < 0 ? null : (T) accept(node, this);
+    }
+
+    private <T> List<T> list(int list) {
+      List<T> children = new ArrayList<>(size(list));
+      for (int i = 0; i < size(list); i++) { children.add(child(node(list, i))); }
+      return children;
+    }
+
+    private List<Token> tokens(int list) {
+      List<Token> tokens = new ArrayList<>(size(list));
+      for (int i = 0; i < size(list); i++) { tokens.add(token(list, i)); }
+      return tokens;
+    }
+
+    @Override
+    public Object visitAssignExpr(int node) {
+      Expr.Assign expr = new Expr.Assign(assignExprName(node), child(assignExprValue(node)));
+      expr.depth = assignExprDepth(node);
+      return expr;
+    }
+
+    @Override
+    public Object visitBinaryExpr(int node) {
+      return new Expr.Binary(child(binaryExprLeft(node)), binaryExprOperator(node), child(binaryExprRight(node)));
+    }
+
+    @Override
+    public Object visitCallExpr(int node) {
+      return new Expr.Call(child(callExprCallee(node)), callExprParen(node), list(callExprArguments(node)));
+    }
+
+    @Override
+    public Object visitGetExpr(int node) {
+      Expr.Get expr = new Expr.Get(child(getExprObject(node)), getExprName(node));
+      expr.slot = getExprSlot(node);
+      return expr;
+    }
+
+    @Override
+    public Object visitGroupingExpr(int node) {
+      return new Expr.Grouping(child(groupingExprExpression(node)));
+    }
+
+    @Override
+    public Object visitLiteralExpr(int node) {
+      return new Expr.Literal(literalExprValue(node));
+    }
+
+    @Override
+    public Object visitLogicalExpr(int node) {
+      return new Expr.Logical(child(logicalExprLeft(node)), logicalExprOperator(node), child(logicalExprRight(node)));
+    }
+
+    @Override
+    public Object visitSetExpr(int node) {
+      Expr.Set expr = new Expr.Set(child(setExprObject(node)), setExprName(node), child(setExprValue(node)));
+      expr.slot = setExprSlot(node);
+      return expr;
+    }
+
+    @Override
+    public Object visitSuperExpr(int node) {
+      Expr.Super expr = new Expr.Super(superExprKeyword(node), superExprMethod(node));
+      expr.depth = superExprDepth(node);
+      return expr;
+    }
+
+    @Override
+    public Object visitThisExpr(int node) {
+      Expr.This expr = new Expr.This(thisExprKeyword(node));
+      expr.depth = thisExprDepth(node);
+      return expr;
+    }
+
+    @Override
+    public Object visitUnaryExpr(int node) {
+      return new Expr.Unary(unaryExprOperator(node), child(unaryExprRight(node)));
+    }
+
+    @Override
+    public Object visitVariableExpr(int node) {
+      Expr.Variable expr = new Expr.Variable(variableExprName(node));
+      expr.depth = variableExprDepth(node);
+      return expr;
+    }
+
+    @Override
+    public Object visitBreakStmt(int node) {
+      return new Stmt.Break(breakStmtKeyword(node));
+    }
+
+    @Override
+    public Object visitBlockStmt(int node) {
+      return new Stmt.Block(list(blockStmtStatements(node)));
+    }
+
+    @Override
+    public Object visitClassStmt(int node) {
+      return new Stmt.Class(classStmtName(node), child(classStmtSuperclass(node)), list(classStmtMethods(node)));
+    }
+
+    @Override
+    public Object visitExpressionStmt(int node) {
+      return new Stmt.Expression(child(expressionStmtExpression(node)));
+    }
+
+    @Override
+    public Object visitFunctionStmt(int node) {
+      return new Stmt.Function(functionStmtName(node), tokens(functionStmtParams(node)), list(functionStmtBody(node)));
+    }
+
+    @Override
+    public Object visitIfStmt(int node) {
+      return new Stmt.If(child(ifStmtCondition(node)), child(ifStmtThenBranch(node)), child(ifStmtElseBranch(node)));
+    }
+
+    @Override
+    public Object visitPrintStmt(int node) {
+      return new Stmt.Print(child(printStmtExpression(node)));
+    }
+
+    @Override
+    public Object visitReturnStmt(int node) {
+      return new Stmt.Return(returnStmtKeyword(node), child(returnStmtValue(node)));
+    }
+
+    @Override
+    public Object visitStructStmt(int node) {
+      return new Stmt.Struct(structStmtName(node), tokens(structStmtFields(node)));
+    }
+
+    @Override
+    public Object visitVarStmt(int node) {
+      return new Stmt.Var(varStmtName(node), child(varStmtInitializer(node)));
+    }
+
+    @Override
+    public Object visitWhileStmt(int node) {
+      return new Stmt.While(child(whileStmtCondition(node)), child(whileStmtBody(node)));
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Scanned, parsed and resolved programs kept in a directory, so running an
+ * unchanged script again skips the front end.
+ *
+ * An entry is a program's Ast arena, resolved depths included, in a file
+ * named by the SHA-256 of VERSION and the source bytes. Editing the script
+ * or changing the engine gives a new name, so entries never go stale; old
+ * ones are simply no longer read. Entries are written to a temporary file
+ * and renamed into place, so concurrent runs of a script never see half an
+ * entry, and a missing or damaged entry is a miss.
+ *
+ * File layout, big-endian:
+ * <pre>
+ * int magic
+ * int root, int node count, int constant count
+ * int[] nodes
+ * constants, each a tag byte then its value
+ * </pre>
+ * The part after the magic is written by writeAst() and is also used by
+ * Snapshot.
+ */
+final class AstCache {
+    /** Part of every key. Change it when Ast's layout or the front end changes. */
+    static final String VERSION = "jlox-ast-3";
+
+    private static final int MAGIC = 0x4a4c5841; // "JLXA"
+
+    private static final byte STRING = 0;
+    private static final byte LOX_STRING = 1;
+    private static final byte NUMBER = 2;
+    private static final byte TRUE = 3;
+    private static final byte FALSE = 4;
+    private static final byte INTEGER = 5;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /** The file name for a program with this source. */
+    String key(ByteBuffer source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update(source.duplicate().rewind());
+
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /** Return the cached program for key, or null. */
+    Ast load(String key) {
+        try (FileChannel channel = FileChannel.open(directory.resolve(key), StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC) { return null; }
+            return readAst(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // a truncated or foreign file is the same as no file
+            return null;
+        }
+    }
+
+    /**
+     * Save ast under key. The cache only saves work, so if the entry
+     * can't be written the program still runs.
+     */
+    void store(String key, Ast ast) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 4 * ast.nodes.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            writeAst(out, ast);
+            out.flush();
+
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, directory.resolve(key),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // run uncached
+        }
+    }
+
+    /** Write ast's arena, everything in an entry after the magic. */
+    static void writeAst(DataOutputStream out, Ast ast) throws IOException {
+        out.writeInt(ast.root);
+        out.writeInt(ast.nodes.length);
+        out.writeInt(ast.constants.length);
+        for (int node : ast.nodes) { out.writeInt(node); }
+        for (Object constant : ast.constants) { writeConstant(out, constant); }
+    }
+
+    /** Read what writeAst() wrote, leaving in after it. */
+    static Ast readAst(ByteBuffer in) {
+        int root = in.getInt();
+        int[] nodes = new int[count(in, in.getInt(), 4)];
+        // every constant takes at least its tag byte
+        Object[] constants = new Object[count(in, in.getInt(), 1)];
+
+        in.asIntBuffer().get(nodes);
+        in.position(in.position() + 4 * nodes.length);
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = readConstant(in);
+        }
+        return new Ast(nodes, constants, root);
+    }
+
+    private static void writeConstant(DataOutputStream out, Object constant) throws IOException {
+        if (constant instanceof String) {
+            out.writeByte(STRING);
+            writeText(out, (String) constant);
+        } else if (constant instanceof LoxString) {
+            out.writeByte(LOX_STRING);
+            writeText(out, ((LoxString) constant).chars);
+        } else if (constant instanceof Double) {
+            out.writeByte(NUMBER);
+            out.writeDouble((Double) constant);
+        } else if (constant instanceof Long) {
+            out.writeByte(INTEGER);
+            out.writeLong((Long) constant);
+        } else if (constant instanceof Boolean) {
+            out.writeByte((Boolean) constant ? TRUE : FALSE);
+        } else {
+            throw new IllegalArgumentException("Can't cache constant " + constant + ".");
+        }
+    }
+
+    /** writeUTF() is limited to 64K, which a string literal can pass. */
+    static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static Object readConstant(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case STRING:     return readText(in);
+            case LOX_STRING: return LoxString.valueOf(readText(in));
+            case NUMBER:     return in.getDouble();
+            case INTEGER:    return Arithmetic.box(in.getLong());
+            case TRUE:       return Boolean.TRUE;
+            case FALSE:      return Boolean.FALSE;
+        }
+        throw new IllegalArgumentException("Unknown constant tag " + tag + ".");
+    }
+
+    /**
+     * count, read from in, as the length of an array whose elements take
+     * at least size bytes of what is left of in. A damaged file could
+     * otherwise ask for more memory than there is; this way it only
+     * fails to parse.
+     */
+    static int count(ByteBuffer in, int count, int size) {
+        if (count < 0 || (long) count * size > in.remaining()) {
+            throw new IllegalArgumentException("Count " + count + " runs past the end of the data.");
+        }
+        return count;
+    }
+
+    static String readText(ByteBuffer in) {
+        byte[] utf8 = new byte[count(in, in.getInt(), 1)];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/** The built-in collection types' constructors. */
+final class CollectionModule implements NativeModule {
+    @Override
+    public List<NativeFunction> functions() {
+        return List.of(
+                new NativeFunction("Array", 0, (interpreter, arguments) -> new LoxArray()),
+                new NativeFunction("Map", 0, (interpreter, arguments) -> new LoxMap()));
+    }
+}
@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * Thrown by LoxEngine.compile() for a script with syntax or resolution
+ * errors. The message has one line per error, as the command line prints
+ * them.
+ */
+public class CompileError extends RuntimeException {
+    private final List<String> errors;
+
+    CompileError(List<String> errors) {
+        super(String.join("\n", errors));
+        this.errors = List.copyOf(errors);
+    }
+
+    /** The errors in the order they were found. */
+    public List<String> errors() {
+        return errors;
+    }
+}
@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A script that has been scanned, parsed and resolved, ready to run any
+ * number of times.
+ *
+ * A compiled script never changes after LoxEngine.compile() returns, so
+ * one can be run by many isolates at once.
+ */
+public final class CompiledScript {
+    private final List<Stmt> statements;
+
+    CompiledScript(List<Stmt> statements) {
+        this.statements = List.copyOf(statements);
+    }
+
+    List<Stmt> statements() {
+        return statements;
+    }
+
+    /**
+     * Run in isolate, after whatever ran there before and with its
+     * globals. Afterwards isolate.hadRuntimeError() tells if it failed.
+     */
+    public void run(Isolate isolate) {
+        isolate.execute(statements);
+    }
+
+    /** Run in a new isolate with fresh globals and return the isolate. */
+    public Isolate run(OutputStream out, OutputStream err) {
+        Isolate isolate = new Isolate(out, err);
+        run(isolate);
+        return isolate;
+    }
+}
@@ -0,0 +1,19 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/** The natives every interpreter has had: clock, floor and random. */
+final class CoreModule implements NativeModule {
+    @Override
+    public List<NativeFunction> functions() {
+        return List.of(
+                new NativeFunction("clock", 0,
+                        (interpreter, arguments) -> (double) System.currentTimeMillis() / 1000.0),
+                // rounds toward zero, unlike Math.floor; scripts rely on it
+                new NativeFunction("floor", 1, (interpreter, arguments) -> {
+                    double n = NativeFunction.number("floor", arguments.get(0));
+                    return n - (n % 1);
+                }),
+                new NativeFunction("random", 0, (interpreter, arguments) -> Math.random()));
+    }
+}
@@ -5,7 +5,7 @@ import java.util.HashMap;
 
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    final Map<String, Object> values = new HashMap<>();
 
     public Environment() {
         this(null);
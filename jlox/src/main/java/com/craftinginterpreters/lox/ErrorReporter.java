@@ -0,0 +1,29 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Receives the errors found by the Scanner, Parser and Resolver. An
+ * Isolate prints them; the parallel front end collects them per chunk and
+ * replays them in source order.
+ */
+interface ErrorReporter {
+    void error(int line, String message);
+
+    void error(Token token, String message);
+
+    /** The text an Isolate prints for an error at line. */
+    static String format(int line, String message) {
+        return format(line, "", message);
+    }
+
+    /** The text an Isolate prints for an error at token. */
+    static String format(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            return format(token.line, " at end", message);
+        }
+        return format(token.line, " at '" + token.lexeme + "'", message);
+    }
+
+    private static String format(int line, String where, String message) {
+        return "[line " + line + "] Error" + where + ": " + message;
+    }
+}
@@ -30,6 +30,7 @@ abstract class Expr{
 
     final Token name;
     final Expr value;
+    int depth = -1;
   }
   public static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -76,6 +77,8 @@ abstract class Expr{
 
     final Expr object;
     final Token name;
+    int slot = -1;
+    transient Object cache;
   }
   public static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -132,6 +135,7 @@ abstract class Expr{
     final Expr object;
     final Token name;
     final Expr value;
+    int slot = -1;
   }
   public static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -146,6 +150,7 @@ abstract class Expr{
 
     final Token keyword;
     final Token method;
+    int depth = -1;
   }
   public static class This extends Expr {
     This(Token keyword) {
@@ -158,6 +163,7 @@ abstract class Expr{
     }
 
     final Token keyword;
+    int depth = -1;
   }
   public static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -184,6 +190,7 @@ abstract class Expr{
     }
 
     final Token name;
+    int depth = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
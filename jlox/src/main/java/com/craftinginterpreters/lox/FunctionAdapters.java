@@ -0,0 +1,209 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * Lox functions as Java functional interfaces, for hosts that call back
+ * into Lox from hot loops.
+ *
+ * For each interface LambdaMetafactory generates an adapter class once,
+ * the way javac's lambdas get theirs, and every function adapted to that
+ * interface is an instance of it. A call is then an ordinary interface
+ * call into one of the callN methods below, which hand the arguments
+ * straight to LoxFunction's fixed-arity calls: no List or argument array
+ * is built. Interfaces whose method takes more than three parameters, and
+ * callables that are not LoxFunctions, such as classes and natives, go
+ * the slower way through a List.
+ *
+ * Primitive arguments are still boxed, since every Lox value is an Object.
+ */
+final class FunctionAdapters {
+    private FunctionAdapters() {}
+
+    /** Creates the adapters for one interface from a Target. */
+    private interface Factory {
+        Object create(Target target) throws Throwable;
+    }
+
+    private static final ClassValue<Factory> FACTORIES = new ClassValue<>() {
+        @Override
+        protected Factory computeValue(Class<?> type) {
+            return factory(type);
+        }
+    };
+
+    /** What an adapter calls, and how to convert what it returns. */
+    private static final class Target {
+        final Interpreter interpreter;
+        final LoxCallable callable;
+        /** callable, if it can take its arguments without a List */
+        final LoxFunction function;
+        final Class<?> returnType;
+
+        Target(Interpreter interpreter, LoxCallable callable, Class<?> returnType) {
+            this.interpreter = interpreter;
+            this.callable = callable;
+            this.function = callable instanceof LoxFunction ? (LoxFunction) callable : null;
+            this.returnType = returnType;
+        }
+
+        Object result(Object value) {
+            return LoxValues.toJava(value, returnType);
+        }
+    }
+
+    /**
+     * Return function as an implementation of the functional interface
+     * type, calling it in isolate.
+     *
+     * @throws IllegalArgumentException if function is not callable, type
+     *         is not a functional interface or their arities differ
+     */
+    static <T> T adapt(Isolate isolate, Object function, Class<T> type) {
+        if (!(function instanceof LoxCallable)) {
+            throw new IllegalArgumentException("Can only adapt functions and classes.");
+        }
+        LoxCallable callable = (LoxCallable) function;
+        Method method = functionalMethod(type);
+        if (callable.arity() >= 0 && callable.arity() != method.getParameterCount()) {
+            throw new IllegalArgumentException("Expected " + method.getParameterCount() +
+                    " parameters for " + type.getSimpleName() + " but " + callable +
+                    " takes " + callable.arity() + ".");
+        }
+
+        Target target = new Target(isolate.interpreter, callable, method.getReturnType());
+        try {
+            return type.cast(FACTORIES.get(type).create(target));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /** The one abstract method of type. */
+    private static Method functionalMethod(Class<?> type) {
+        if (type == null || !type.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + type);
+        }
+        Method found = null;
+        for (Method method : type.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) { continue; }
+            if (found != null) {
+                throw new IllegalArgumentException("Not a functional interface: " + type.getName());
+            }
+            found = method;
+        }
+        if (found == null) {
+            throw new IllegalArgumentException("Not a functional interface: " + type.getName());
+        }
+        return found;
+    }
+
+    /** Interfaces like Comparator redeclare equals(), which doesn't count. */
+    private static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static Factory factory(Class<?> type) {
+        Method method = functionalMethod(type);
+        MethodType methodType = MethodType.methodType(method.getReturnType(), method.getParameterTypes());
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        int arity = method.getParameterCount();
+        try {
+            if (arity <= 3) {
+                MethodHandle implementation = lookup.findStatic(FunctionAdapters.class, "call" + arity,
+                        MethodType.genericMethodType(arity).insertParameterTypes(0, Target.class));
+                MethodHandle constructor = LambdaMetafactory.metafactory(lookup, method.getName(),
+                        MethodType.methodType(type, Target.class), methodType, implementation, methodType)
+                        .getTarget();
+                return constructor::invoke;
+            }
+        } catch (ReflectiveOperationException | LambdaConversionException | IllegalAccessError e) {
+            // an interface the generated class can't see: use a proxy
+        }
+
+        MethodHandle callN;
+        try {
+            callN = lookup.findStatic(FunctionAdapters.class, "callN",
+                    MethodType.methodType(Object.class, Target.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return target -> MethodHandleProxies.asInterfaceInstance(type,
+                callN.bindTo(target).asCollector(Object[].class, arity).asType(methodType));
+    }
+
+    private static Object call0(Target target) {
+        try {
+            if (target.function != null) {
+                return target.result(target.function.call(target.interpreter));
+            }
+            return callList(target, new Object[0]);
+        } finally {
+            target.interpreter.getOutput().flush();
+        }
+    }
+
+    private static Object call1(Target target, Object a) {
+        try {
+            if (target.function != null) {
+                return target.result(target.function.call(target.interpreter, LoxValues.toLox(a)));
+            }
+            return callList(target, new Object[] {a});
+        } finally {
+            target.interpreter.getOutput().flush();
+        }
+    }
+
+    private static Object call2(Target target, Object a, Object b) {
+        try {
+            if (target.function != null) {
+                return target.result(target.function.call(target.interpreter,
+                        LoxValues.toLox(a), LoxValues.toLox(b)));
+            }
+            return callList(target, new Object[] {a, b});
+        } finally {
+            target.interpreter.getOutput().flush();
+        }
+    }
+
+    private static Object call3(Target target, Object a, Object b, Object c) {
+        try {
+            if (target.function != null) {
+                return target.result(target.function.call(target.interpreter,
+                        LoxValues.toLox(a), LoxValues.toLox(b), LoxValues.toLox(c)));
+            }
+            return callList(target, new Object[] {a, b, c});
+        } finally {
+            target.interpreter.getOutput().flush();
+        }
+    }
+
+    private static Object callN(Target target, Object[] args) {
+        try {
+            return callList(target, args);
+        } finally {
+            target.interpreter.getOutput().flush();
+        }
+    }
+
+    /** The slow path, which the callers above flush after. */
+    private static Object callList(Target target, Object[] args) {
+        for (int i = 0; i < args.length; i++) { args[i] = LoxValues.toLox(args[i]); }
+        return target.result(target.callable.call(target.interpreter, Arrays.asList(args)));
+    }
+}
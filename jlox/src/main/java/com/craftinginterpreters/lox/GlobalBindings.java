@@ -0,0 +1,105 @@
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import javax.script.Bindings;
+
+/**
+ * Bindings that are an isolate's global variables.
+ *
+ * Reads and writes go straight to the globals' map, converting values
+ * between Java and Lox on the way, so there is nothing to copy before or
+ * after running a script. The native functions are globals too and show
+ * up here like any other.
+ */
+final class GlobalBindings extends AbstractMap<String, Object> implements Bindings {
+    final Isolate isolate;
+    private final Map<String, Object> globals;
+
+    GlobalBindings(Isolate isolate) {
+        this.isolate = isolate;
+        this.globals = isolate.interpreter.globals.values;
+    }
+
+    @Override
+    public Object put(String name, Object value) {
+        checkName(name);
+        return LoxValues.toJava(globals.put(name, LoxValues.toLox(value)));
+    }
+
+    @Override
+    public Object get(Object name) {
+        checkName(name);
+        return LoxValues.toJava(globals.get(name));
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        checkName(name);
+        return globals.containsKey(name);
+    }
+
+    @Override
+    public Object remove(Object name) {
+        checkName(name);
+        return LoxValues.toJava(globals.remove(name));
+    }
+
+    @Override
+    public int size() {
+        return globals.size();
+    }
+
+    @Override
+    public void clear() {
+        globals.clear();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                Iterator<Entry<String, Object>> entries = globals.entrySet().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        Entry<String, Object> entry = entries.next();
+                        return new SimpleEntry<>(entry.getKey(), LoxValues.toJava(entry.getValue())) {
+                            @Override
+                            public Object setValue(Object value) {
+                                super.setValue(value);
+                                return LoxValues.toJava(entry.setValue(LoxValues.toLox(value)));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        entries.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return globals.size();
+            }
+        };
+    }
+
+    /** The checks Bindings asks for. */
+    private static void checkName(Object name) {
+        if (name == null) { throw new NullPointerException("Name is null."); }
+        if (!(name instanceof String)) { throw new ClassCastException("Name is not a String."); }
+        if (((String) name).isEmpty()) { throw new IllegalArgumentException("Name is empty."); }
+    }
+}
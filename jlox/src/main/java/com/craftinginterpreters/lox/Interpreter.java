@@ -1,64 +1,49 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Interpreter implements Expr.Visitor<Object>,
                                     Stmt.Visitor<Object> {
 
+    final Isolate isolate;
     final Environment globals = new Environment();
+    /** the native functions, by the global name they are defined under */
+    final Map<String, LoxCallable> natives = new HashMap<>();
+    /** the Java classes scripts may use, or null if none */
+    private JavaInterop java = null;
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-
-    private double floor(double n) {
-        return n - (n % 1);
-    }
-
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
-
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
-
-        globals.define("floor", new LoxCallable() {
-            @Override
-            public int arity() { return 1; }
+    private OutputBuffer out = OutputBuffer.systemOut(OutputBuffer.FlushPolicy.SIZE);
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                Object arg = arguments.get(0);
-                if (arg instanceof Double) {
-                    return floor((double) arg);
-                }
-                throw new RuntimeError("floor argument must be double. got " + arg);
-            }
+    /** marks a print operand whose pieces are in printParts */
+    private static final Object PRINT_PARTS = new Object();
+    private final List<Object> printParts = new ArrayList<>();
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    Interpreter(Isolate isolate) {
+        this.isolate = isolate;
+        defineModule(new CoreModule());
+        defineModule(new MathModule());
+        defineModule(new CollectionModule());
+    }
 
-        globals.define("random", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
+    private void defineModule(NativeModule module) {
+        for (NativeFunction function : module.functions()) {
+            defineNative(function.name, function);
+        }
+    }
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) Math.random();
-            }
+    private void defineNative(String name, LoxCallable function) {
+        natives.put(name, function);
+        globals.define(name, function);
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    /** Let scripts use type, as a global named by its simple name. */
+    void allowJava(Class<?> type) {
+        if (java == null) { java = new JavaInterop(); }
+        java.allow(type);
+        defineNative(type.getSimpleName(), new JavaInterop.JavaClass(type));
     }
 
     void interpret(List<Stmt> statements) {
@@ -67,7 +52,7 @@ public class Interpreter implements Expr.Visitor<Object>,
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            isolate.runtimeError(error);
         }
     }
 
@@ -75,8 +60,14 @@ public class Interpreter implements Expr.Visitor<Object>,
         statement.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /** Send print output to out, flushing what was buffered so far. */
+    void setOutput(OutputBuffer out) {
+        this.out.flush();
+        this.out = out;
+    }
+
+    OutputBuffer getOutput() {
+        return out;
     }
 
     /**
@@ -84,29 +75,33 @@ public class Interpreter implements Expr.Visitor<Object>,
      *
      * Two edge cases are:
      * Converting null to "nil"
-     * Stripping ".0" from string for integer-valued doubles
+     * Dropping ".0" from integer-valued doubles, see NumberFormatter
      * @param object object to stringify
      * @return object's string representation
      */
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) { return "nil"; }
 
         if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
+            return NumberFormatter.toString((double) object);
         }
         return object.toString();
     }
 
+    private boolean isString(Object object) {
+        return object instanceof LoxString || object instanceof LoxRope;
+    }
+
+    /** Strings are concatenated as they are, anything else is stringified. */
+    private Object text(Object object) {
+        return isString(object) ? object : stringify(object);
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.name, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -120,17 +115,17 @@ public class Interpreter implements Expr.Visitor<Object>,
         switch(expr.operator.type) {
             /* Comparison Operators */
             case GREATER:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left > (double)right;
+                if (left instanceof Double && right instanceof Double) { return (double)left > (double)right; }
+                return compare(expr.operator, left, right);
             case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left >= (double)right;
+                if (left instanceof Double && right instanceof Double) { return (double)left >= (double)right; }
+                return compare(expr.operator, left, right);
             case LESS:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left < (double)right;
+                if (left instanceof Double && right instanceof Double) { return (double)left < (double)right; }
+                return compare(expr.operator, left, right);
             case LESS_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left <= (double)right;
+                if (left instanceof Double && right instanceof Double) { return (double)left <= (double)right; }
+                return compare(expr.operator, left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case BANG_EQUAL:
@@ -138,68 +133,172 @@ public class Interpreter implements Expr.Visitor<Object>,
             /* Arithmetic Operators */
             // + is a little special since it is also used for concatenating strings
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-                // either arg is a string, so string-ify them
-                if (left instanceof String || right instanceof String) {
-                    return stringify(left) + stringify(right);
-                }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
+                return add(expr.operator, left, right);
             case MINUS:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left - (double)right;
+                if (left instanceof Double && right instanceof Double) { return (double)left - (double)right; }
+                if (left instanceof Long && right instanceof Long) {
+                    return Arithmetic.subtract((Long) left, (Long) right);
+                }
+                return arithmetic(expr.operator, left, right);
             case SLASH:
-                checkNumberOperand(expr.operator, left, right);
-                checkDivideByZero(expr.operator, (double) right);
-                return (double)left / (double)right;
+                if (left instanceof Double && right instanceof Double) {
+                    checkDivideByZero(expr.operator, (double) right);
+                    return (double)left / (double)right;
+                }
+                return arithmetic(expr.operator, left, right);
             case STAR:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left * (double)right;
+                if (left instanceof Double && right instanceof Double) { return (double)left * (double)right; }
+                if (left instanceof Long && right instanceof Long) {
+                    return Arithmetic.multiply((Long) left, (Long) right);
+                }
+                return arithmetic(expr.operator, left, right);
+            case PERCENT:
+                if (left instanceof Long && right instanceof Long) {
+                    checkDivideByZero(expr.operator, (Long) right);
+                    return Arithmetic.box((Long) left % (Long) right);
+                }
+                return arithmetic(expr.operator, left, right);
+            case TILDE_SLASH:
+                if (left instanceof Long && right instanceof Long) {
+                    checkDivideByZero(expr.operator, (Long) right);
+                    return Arithmetic.divide((Long) left, (Long) right);
+                }
+                return arithmetic(expr.operator, left, right);
+            /* Bitwise Operators */
+            case AMPERSAND:
+                return Arithmetic.box(integer(expr.operator, left) & integer(expr.operator, right));
+            case PIPE:
+                return Arithmetic.box(integer(expr.operator, left) | integer(expr.operator, right));
+            case CARET:
+                return Arithmetic.box(integer(expr.operator, left) ^ integer(expr.operator, right));
+            case LESS_LESS:
+                return Arithmetic.box(integer(expr.operator, left) << integer(expr.operator, right));
+            case GREATER_GREATER:
+                return Arithmetic.box(integer(expr.operator, left) >> integer(expr.operator, right));
         }
         // unreachable
         return null;
     }
 
+    // + is a little special since it is also used for concatenating strings
+    private Object add(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if (left instanceof Long && right instanceof Long) {
+            return Arithmetic.add((Long) left, (Long) right);
+        }
+        if (Arithmetic.isNumber(left) && Arithmetic.isNumber(right)) {
+            return Arithmetic.toDouble(left) + Arithmetic.toDouble(right);
+        }
+        if (left instanceof LoxVec3 && right instanceof LoxVec3) {
+            return LoxVec3.arithmetic(operator, left, right);
+        }
+        // either arg is a string, so string-ify them
+        if (isString(left) || isString(right)) {
+            return LoxRope.concat(text(left), text(right));
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+    }
+
+    /**
+     * -, *, /, % or ~/ on operands that aren't both doubles or both
+     * integers: a double and an integer, or a Vec3.
+     */
+    private Object arithmetic(Token operator, Object left, Object right) {
+        if (Arithmetic.isNumber(left) && Arithmetic.isNumber(right)) {
+            double divisor = Arithmetic.toDouble(right);
+            if (operator.type == TokenType.SLASH || operator.type == TokenType.PERCENT ||
+                    operator.type == TokenType.TILDE_SLASH) {
+                checkDivideByZero(operator, divisor);
+            }
+            return Arithmetic.doubleArithmetic(operator, Arithmetic.toDouble(left), divisor);
+        }
+        Object result = LoxVec3.arithmetic(operator, left, right);
+        if (result != null) { return result; }
+        throw new RuntimeError(operator, "Operands must be a number");
+    }
+
+    private boolean compare(Token operator, Object left, Object right) {
+        checkNumberOperand(operator, left, right);
+        return Arithmetic.compare(operator, left, right);
+    }
+
+    private long integer(Token operator, Object operand) {
+        return Arithmetic.toInteger(operator, operand);
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        Object callee;
+        if (expr.callee instanceof Expr.Get) {
+            // call a native object's method without binding it first
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            if (object instanceof NativeObject) {
+                return ((NativeObject) object).invoke(this, get.name, evaluateArguments(expr));
+            }
+            callee = property(object, get);
+        } else {
+            callee = evaluate(expr.callee);
         }
 
+        List<Object> arguments = evaluateArguments(expr);
+
         if (!(callee instanceof  LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
+        if (function.arity() >= 0 && arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " + function.arity() +
                     " arguments but got " + arguments.size() + ".");
         }
         return function.call(this, arguments);
     }
 
+    private List<Object> evaluateArguments(Expr.Call expr) {
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+        return arguments;
+    }
+
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return property(evaluate(expr.object), expr);
+    }
+
+    private Object property(Object object, Expr.Get expr) {
+        if (object instanceof LoxStructInstance) {
+            return ((LoxStructInstance) object).get(expr.name, expr.slot);
+        }
         if (object instanceof LoxInstance) {
             return ((LoxInstance) object).get(expr.name);
         }
+        if (object instanceof NativeObject) {
+            return ((NativeObject) object).get(expr.name);
+        }
+        if (java != null) { return java.get(this, object, expr); }
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
     /**
      * Lox's notion of equality is basically the same as java's.
+     * Strings are interned, so two strings are equal only if they are
+     * the same object. Ropes are flattened to their interned string first.
      * @param a object to compare
      * @param b object to compare
      * @return object's equality
      */
     private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) { return true; }
-        if (a == null) { return false; }
+        if (a instanceof LoxRope) { a = ((LoxRope) a).flatten(); }
+        if (b instanceof LoxRope) { b = ((LoxRope) b).flatten(); }
+        if (a == b) { return true; }
+        if (a == null || a instanceof LoxString) { return false; }
+        if (a instanceof Long && b instanceof Double) { return Arithmetic.equal((Long) a, (Double) b); }
+        if (a instanceof Double && b instanceof Long) { return Arithmetic.equal((Long) b, (Double) a); }
 
         return a.equals(b);
     }
@@ -237,6 +336,11 @@ public class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitSetExpr(Expr.Set expr) {
         Object object = evaluate(expr.object);
+        if (object instanceof LoxStructInstance) {
+            Object value = evaluate(expr.value);
+            ((LoxStructInstance) object).set(expr.name, expr.slot, value);
+            return value;
+        }
         if (!(object instanceof LoxInstance)) {
             throw new RuntimeError(expr.name,
                     "Only instances have fields.");
@@ -248,7 +352,7 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
+        int distance = expr.depth;
         LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
 
         LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
@@ -264,7 +368,7 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth);
     }
 
     @Override
@@ -274,6 +378,11 @@ public class Interpreter implements Expr.Visitor<Object>,
             case BANG:
                 return !isTruthy(right);
             case MINUS:
+                if (right instanceof Long) { return Arithmetic.negate((Long) right); }
+                if (right instanceof LoxVec3) {
+                    LoxVec3 vector = (LoxVec3) right;
+                    return new LoxVec3(-vector.x, -vector.y, -vector.z);
+                }
                 checkNumberOperand(expr.operator, right);
                 return -(double) right;
         }
@@ -287,11 +396,11 @@ public class Interpreter implements Expr.Visitor<Object>,
     }
 
     private void checkNumberOperand(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double ) { return; }
+        if (Arithmetic.isNumber(left) && Arithmetic.isNumber(right)) { return; }
         throw new RuntimeError(operator, "Operands must be a number");
     }
 
-    private void checkDivideByZero(Token operator, Double divisor) {
+    private void checkDivideByZero(Token operator, double divisor) {
         if (divisor != 0) { return; }
         throw new RuntimeError(operator, "Divisor cannot be zero.");
     }
@@ -358,6 +467,14 @@ public class Interpreter implements Expr.Visitor<Object>,
         return null;
     }
 
+    @Override
+    public Object visitStructStmt(Stmt.Struct stmt) {
+        String[] fields = new String[stmt.fields.size()];
+        for (int i = 0; i < fields.length; i++) { fields[i] = stmt.fields.get(i).lexeme; }
+        environment.define(stmt.name.lexeme, new LoxStruct(stmt.name.lexeme, fields));
+        return null;
+    }
+
     void executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
@@ -395,13 +512,13 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    /** depth is set by the Resolver, -1 for a global */
+    private Object lookUpVariable(Token name, int depth) {
+        if (depth >= 0) {
+            return environment.getAt(depth, name.lexeme);
         } else {
             return globals.get(name);
         }
@@ -409,11 +526,68 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        int base = printParts.size();
+        try {
+            Object value = concatenate(stmt.expression);
+            if (value == PRINT_PARTS) {
+                for (int i = base; i < printParts.size(); i++) {
+                    print(printParts.get(i));
+                }
+            } else {
+                print(value);
+            }
+        } finally {
+            // drop this statement's parts, also when an operand threw
+            printParts.subList(base, printParts.size()).clear();
+        }
+        out.println();
         return null;
     }
 
+    /**
+     * Evaluate the operands of a chain of + for print.
+     *
+     * Operands are evaluated and checked in the same order as
+     * visitBinaryExpr, but once one side is a string the concatenation is not
+     * built: the pieces are pushed onto printParts and PRINT_PARTS is returned,
+     * so print can stream them straight into the output buffer. Nothing is
+     * written until every operand has been evaluated, since an operand can
+     * print or fail.
+     */
+    private Object concatenate(Expr expr) {
+        if (!(expr instanceof Expr.Binary) ||
+                ((Expr.Binary) expr).operator.type != TokenType.PLUS) {
+            return evaluate(expr);
+        }
+        Expr.Binary binary = (Expr.Binary) expr;
+        Object left = concatenate(binary.left);
+        Object right = evaluate(binary.right);
+        if (left == PRINT_PARTS) {
+            printParts.add(right);
+            return PRINT_PARTS;
+        }
+        if (!(left instanceof Double && right instanceof Double) &&
+                (isString(left) || isString(right))) {
+            printParts.add(left);
+            printParts.add(right);
+            return PRINT_PARTS;
+        }
+        return add(binary.operator, left, right);
+    }
+
+    /** Write a value to the output without building its string if possible. */
+    private void print(Object value) {
+        if (value instanceof LoxString) {
+            out.print(((LoxString) value).chars);
+        } else if (value instanceof LoxRope) {
+            ((LoxRope) value).appendTo(out::print);
+        } else if (value instanceof Double) {
+            out.print((double) value);
+        } else {
+            out.print(stringify(value));
+        }
+    }
+
     @Override
     public Object visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
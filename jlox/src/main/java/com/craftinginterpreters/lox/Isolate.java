@@ -0,0 +1,229 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An interpreter with its own globals, error state and output.
+ *
+ * Nothing an isolate changes is shared with other isolates, so any number
+ * of them can run scripts at the same time, each on its own thread. Only
+ * immutable values cross between them: the interned strings and the
+ * native functions' code. One isolate runs one script at a time; running
+ * several scripts in it one after another keeps the globals between them,
+ * like lines typed at the prompt.
+ *
+ * Lox's static methods run scripts in one shared isolate.
+ */
+public final class Isolate implements ErrorReporter {
+    final Interpreter interpreter;
+    private PrintStream err;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    /** parse function bodies when they are first called */
+    boolean lazyFunctions = false;
+    /** resolved programs from earlier runs, or null */
+    AstCache cache = null;
+
+    /**
+     * An isolate that prints to out and reports errors to err. Output is
+     * buffered and written at the end of each run, or before an error.
+     */
+    public Isolate(OutputStream out, OutputStream err) {
+        this(new OutputBuffer(Channels.newChannel(out), OutputBuffer.FlushPolicy.SIZE,
+                        OutputBuffer.DEFAULT_CAPACITY, false),
+                new PrintStream(err, true, StandardCharsets.UTF_8));
+    }
+
+    Isolate(OutputBuffer out, PrintStream err) {
+        this.interpreter = new Interpreter(this);
+        this.err = err;
+        interpreter.setOutput(out);
+    }
+
+    /** Send output to out and errors to err from now on. */
+    void setOutput(OutputBuffer out, PrintStream err) {
+        interpreter.setOutput(out);
+        this.err = err;
+    }
+
+    /** Run source after the scripts run before it. */
+    public void run(String source) {
+        run(source, Lox.Pipeline.SEQUENTIAL);
+    }
+
+    void run(String source, Lox.Pipeline pipeline) {
+        run(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), pipeline);
+    }
+
+    void run(ByteBuffer source, Lox.Pipeline pipeline) {
+        hadError = false;
+        hadRuntimeError = false;
+        if (pipeline == Lox.Pipeline.STREAM) {
+            runStreaming(new Scanner(source, this));
+            return;
+        }
+
+        List<Stmt> statements;
+        if (cache == null) {
+            statements = compile(new Scanner(source, this), pipeline);
+        } else {
+            statements = compileCached(source, pipeline);
+        }
+        if (statements == null) { return; }
+
+        interpreter.interpret(statements);
+        interpreter.getOutput().flush();
+    }
+
+    /** Run statements that are already resolved, like a CompiledScript's. */
+    void execute(List<Stmt> statements) {
+        hadError = false;
+        hadRuntimeError = false;
+        interpreter.interpret(statements);
+        interpreter.getOutput().flush();
+    }
+
+    /**
+     * Like execute(), but a runtime error is thrown to the caller instead
+     * of being reported.
+     */
+    void executeOrThrow(List<Stmt> statements) {
+        hadError = false;
+        hadRuntimeError = false;
+        try {
+            interpreter.executeBlock(statements, interpreter.globals);
+        } finally {
+            interpreter.getOutput().flush();
+        }
+    }
+
+    /**
+     * The value of the global variable name, converted for Java as with
+     * the engine's Bindings, or null if there is no such variable.
+     */
+    public Object global(String name) {
+        return LoxValues.toJava(interpreter.globals.values.get(name));
+    }
+
+    /**
+     * Return a Lox function, bound method or class as an implementation of
+     * the functional interface type, such as DoubleBinaryOperator or
+     * Function. Calls run in this isolate, so like its scripts they must
+     * come from one thread at a time. Arguments and results are converted
+     * as with global(), and a runtime error in the function is thrown as a
+     * RuntimeError.
+     *
+     * @throws IllegalArgumentException if function is not callable, type
+     *         is not a functional interface or their arities differ
+     */
+    public <T> T adapt(Object function, Class<T> type) {
+        return FunctionAdapters.adapt(this, function, type);
+    }
+
+    /**
+     * Let scripts in this isolate use the public constructors, methods and
+     * fields of types, each as a global named by its simple name. Objects
+     * the scripts get from them can only be used through allowed types.
+     *
+     * @throws IllegalArgumentException if a type is not public
+     */
+    public void allowJava(Class<?>... types) {
+        for (Class<?> type : types) { interpreter.allowJava(type); }
+    }
+
+    /** True if the last run had a syntax or resolution error. */
+    public boolean hadError() {
+        return hadError;
+    }
+
+    /** True if the last run stopped with a runtime error. */
+    public boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    /** Scan, parse and resolve. Return null if there was an error. */
+    private List<Stmt> compile(Scanner scanner, Lox.Pipeline pipeline) {
+        boolean parallel = pipeline == Lox.Pipeline.PARALLEL;
+        TokenBuffer tokens = scanner.scanTokens();
+        List<Stmt> statements = parallel
+                ? ParallelFrontEnd.parse(tokens, this, lazyFunctions)
+                : new Parser(tokens, this, lazyFunctions).parse();
+
+        if (hadError) { return null; } // parser error
+
+        if (parallel) {
+            ParallelFrontEnd.resolve(statements, this);
+        } else {
+            new Resolver(this).resolve(statements);
+        }
+
+        if (hadError) { return null; } // resolution error
+        return statements;
+    }
+
+    /**
+     * Like compile(), but take the program from the cache when this source
+     * has been compiled before, and save it there when not. Programs with
+     * errors are not saved, so their errors are reported on every run.
+     * Saving parses any lazy function bodies.
+     */
+    private List<Stmt> compileCached(ByteBuffer source, Lox.Pipeline pipeline) {
+        String key = cache.key(source);
+        Ast ast = cache.load(key);
+        if (ast != null) { return ast.decode(); }
+
+        List<Stmt> statements = compile(new Scanner(source, this), pipeline);
+        if (statements != null) { cache.store(key, Ast.encode(statements)); }
+        return statements;
+    }
+
+    /**
+     * Resolve and run each declaration as soon as it is parsed. Output
+     * starts before the rest of the script is read and memory does not
+     * grow with the script's length. Once there is an error nothing more
+     * is run, but later syntax errors are still reported. Function bodies
+     * are never lazy here since their tokens are discarded.
+     */
+    private void runStreaming(Scanner scanner) {
+        Parser parser = new Parser(scanner.streamTokens(), this, false);
+        Resolver resolver = new Resolver(this);
+        for (Stmt statement = parser.next(); statement != null; statement = parser.next()) {
+            // a statement with a syntax error may hold nulls where parsing recovered
+            if (hadError) { continue; }
+            resolver.resolve(statement);
+            if (hadError) { continue; }
+
+            interpreter.interpret(List.of(statement));
+            if (hadRuntimeError) { break; }
+        }
+        interpreter.getOutput().flush();
+    }
+
+    @Override
+    public void error(int line, String message) {
+        report(ErrorReporter.format(line, message));
+    }
+
+    @Override
+    public void error(Token token, String message) {
+        report(ErrorReporter.format(token, message));
+    }
+
+    private void report(String error) {
+        // keep output that came before the error ahead of it
+        interpreter.getOutput().flush();
+        err.println(error);
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        interpreter.getOutput().flush();
+        err.println(error.getMessage() + error.getTokenMsg());
+        hadRuntimeError = true;
+    }
+}
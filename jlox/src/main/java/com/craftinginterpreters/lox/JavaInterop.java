@@ -0,0 +1,411 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The Java classes an isolate lets its scripts use. None are allowed
+ * unless the host or the command line asks for them.
+ *
+ * An allowed class is a global named by its simple name: calling it calls
+ * a constructor, and its static methods and fields are its properties.
+ * Java objects are Lox values as they are, and the public methods and
+ * fields of the allowed classes and interfaces they implement are their
+ * properties, so allowing java.util.Iterator lets scripts use the iterator
+ * a list returns.
+ *
+ * Each Expr.Get keeps what its property resolved to in its cache field,
+ * for the receiver class it last saw. A method remembers the overload it
+ * chose for the Lox types of the last arguments, as a MethodHandle and one
+ * Conversion per parameter picked for those types, so a call that sees
+ * the same types again does no reflection. The trees are shared between
+ * isolates, so a cached member is checked against this isolate's allowed
+ * classes before it is used. Sites and invokers are immutable apart from
+ * the last invoker, which threads may race to replace; any of them is
+ * correct.
+ *
+ * Varargs methods are called with an explicit array only, which scripts
+ * have no way to make, so in practice they are out of reach.
+ */
+final class JavaInterop {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private final Set<Class<?>> allowed = new LinkedHashSet<>();
+
+    /** Let scripts use type. */
+    void allow(Class<?> type) {
+        if (!Modifier.isPublic(type.getModifiers())) {
+            throw new IllegalArgumentException(type.getName() + " is not public.");
+        }
+        allowed.add(type);
+    }
+
+    /** The value of the property expr.name of object. */
+    Object get(Interpreter interpreter, Object object, Expr.Get expr) {
+        boolean isStatic = object instanceof JavaClass;
+        Class<?> key = isStatic ? ((JavaClass) object).type : object == null ? null : object.getClass();
+        Site site = expr.cache instanceof Site ? (Site) expr.cache : null;
+        if (site == null || site.key != key || site.isStatic != isStatic || !allowed.contains(site.owner)) {
+            site = resolve(key, isStatic, expr.name);
+            expr.cache = site;
+        }
+
+        Object receiver = isStatic ? null : object;
+        if (site.getter == null) { return new JavaMethod(site, receiver, expr.name); }
+        try {
+            Object value = isStatic ? site.getter.invoke() : site.getter.invoke(receiver);
+            return toLox(value);
+        } catch (Throwable t) {
+            throw javaError(expr.name, t);
+        }
+    }
+
+    /** Find the member name of key, a Java class or the class of an object. */
+    private Site resolve(Class<?> key, boolean isStatic, Token name) {
+        if (key != null) {
+            for (Class<?> owner : allowed) {
+                if (isStatic ? owner != key : !owner.isAssignableFrom(key)) { continue; }
+
+                List<Method> methods = new ArrayList<>();
+                for (Method method : owner.getMethods()) {
+                    if (method.getName().equals(name.lexeme) &&
+                            Modifier.isStatic(method.getModifiers()) == isStatic) {
+                        methods.add(method);
+                    }
+                }
+                if (!methods.isEmpty()) {
+                    return new Site(key, isStatic, owner, methods.toArray(new Executable[0]), null);
+                }
+
+                MethodHandle getter = getter(owner, isStatic, name.lexeme);
+                if (getter != null) { return new Site(key, isStatic, owner, null, getter); }
+            }
+        }
+        if (isStatic) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    private static MethodHandle getter(Class<?> owner, boolean isStatic, String name) {
+        try {
+            Field field = owner.getField(name);
+            if (Modifier.isStatic(field.getModifiers()) != isStatic) { return null; }
+            MethodHandle getter = LOOKUP.unreflectGetter(field);
+            return getter.asType(isStatic ? MethodType.methodType(Object.class)
+                    : MethodType.methodType(Object.class, Object.class));
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /** A class scripts may use, bound to its simple name. */
+    static final class JavaClass implements LoxCallable {
+        final Class<?> type;
+        private final Executable[] constructors;
+        /** the constructor the last call chose */
+        private Invoker last;
+
+        JavaClass(Class<?> type) {
+            this.type = type;
+            this.constructors = type.getConstructors();
+        }
+
+        @Override
+        public int arity() {
+            return -1;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Invoker invoker = last;
+            if (invoker == null || !invoker.accepts(arguments)) {
+                invoker = choose(constructors, arguments, null, type.getSimpleName());
+                last = invoker;
+            }
+            return invoker.invoke(interpreter, null, arguments, null);
+        }
+
+        @Override
+        public String toString() {
+            return "<java class " + type.getName() + ">";
+        }
+    }
+
+    /** A method looked up by an Expr.Get, bound to its receiver. */
+    static final class JavaMethod implements LoxCallable {
+        private final Site site;
+        private final Object receiver;
+        private final Token name;
+
+        JavaMethod(Site site, Object receiver, Token name) {
+            this.site = site;
+            this.receiver = receiver;
+            this.name = name;
+        }
+
+        @Override
+        public int arity() {
+            return -1;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Invoker invoker = site.last;
+            if (invoker == null || !invoker.accepts(arguments)) {
+                invoker = choose(site.methods, arguments, name, site.owner.getSimpleName());
+                site.last = invoker;
+            }
+            return invoker.invoke(interpreter, receiver, arguments, name);
+        }
+
+        @Override
+        public String toString() {
+            return "<java method " + site.owner.getSimpleName() + "." + name.lexeme + ">";
+        }
+    }
+
+    /** What an Expr.Get resolved to for one receiver class. */
+    private static final class Site {
+        final Class<?> key;
+        final boolean isStatic;
+        /** the allowed class the member was found on */
+        final Class<?> owner;
+        /** the overloads named by the property, or null for a field */
+        final Executable[] methods;
+        final MethodHandle getter;
+        /** the overload the last call chose */
+        Invoker last;
+
+        Site(Class<?> key, boolean isStatic, Class<?> owner, Executable[] methods, MethodHandle getter) {
+            this.key = key;
+            this.isStatic = isStatic;
+            this.owner = owner;
+            this.methods = methods;
+            this.getter = getter;
+        }
+    }
+
+    /** Converts a value on its way between Lox and Java. */
+    private interface Conversion {
+        Object convert(Interpreter interpreter, Object value);
+    }
+
+    private static final Conversion IDENTITY = (interpreter, value) -> value;
+    private static final Conversion TO_INT = (interpreter, value) -> ((Number) value).intValue();
+    private static final Conversion TO_LONG = (interpreter, value) -> ((Number) value).longValue();
+    private static final Conversion TO_FLOAT = (interpreter, value) -> ((Number) value).floatValue();
+    private static final Conversion TO_DOUBLE = (interpreter, value) -> ((Number) value).doubleValue();
+    private static final Conversion TO_SHORT = (interpreter, value) -> ((Number) value).shortValue();
+    private static final Conversion TO_BYTE = (interpreter, value) -> ((Number) value).byteValue();
+    private static final Conversion TO_STRING = (interpreter, value) -> LoxValues.toJava(value);
+    private static final Conversion FROM_NUMBER =
+            (interpreter, value) -> value == null ? null : ((Number) value).doubleValue();
+    private static final Conversion FROM_INTEGER =
+            (interpreter, value) -> value == null ? null : Arithmetic.box(((Number) value).longValue());
+    private static final Conversion FROM_STRING =
+            (interpreter, value) -> value == null ? null : LoxString.valueOf(value.toString());
+    private static final Conversion FROM_ANY = (interpreter, value) -> toLox(value);
+
+    /** An overload and how to convert arguments of the types it was chosen for. */
+    private static final class Invoker {
+        /** the classes of the arguments, null for nil */
+        final Class<?>[] observed;
+        final Conversion[] conversions;
+        /** (Object[])Object, with the receiver first unless static */
+        final MethodHandle handle;
+        final Conversion result;
+
+        Invoker(Class<?>[] observed, Conversion[] conversions, MethodHandle handle, Conversion result) {
+            this.observed = observed;
+            this.conversions = conversions;
+            this.handle = handle;
+            this.result = result;
+        }
+
+        boolean accepts(List<Object> arguments) {
+            if (arguments.size() != observed.length) { return false; }
+            for (int i = 0; i < observed.length; i++) {
+                if (classOf(arguments.get(i)) != observed[i]) { return false; }
+            }
+            return true;
+        }
+
+        Object invoke(Interpreter interpreter, Object receiver, List<Object> arguments, Token name) {
+            int offset = receiver == null ? 0 : 1;
+            Object[] values = new Object[offset + conversions.length];
+            if (receiver != null) { values[0] = receiver; }
+            for (int i = 0; i < conversions.length; i++) {
+                values[offset + i] = conversions[i].convert(interpreter, arguments.get(i));
+            }
+            try {
+                return result.convert(interpreter, (Object) handle.invokeExact(values));
+            } catch (Throwable t) {
+                throw javaError(name, t);
+            }
+        }
+    }
+
+    /**
+     * The overload in candidates that fits the Lox types of arguments with
+     * the fewest conversions.
+     */
+    private static Invoker choose(Executable[] candidates, List<Object> arguments, Token name, String owner) {
+        Class<?>[] observed = new Class<?>[arguments.size()];
+        for (int i = 0; i < observed.length; i++) { observed[i] = classOf(arguments.get(i)); }
+
+        Executable best = null;
+        Conversion[] bestConversions = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (Executable candidate : candidates) {
+            if (candidate.getParameterCount() != observed.length) { continue; }
+            Class<?>[] parameters = candidate.getParameterTypes();
+            Conversion[] conversions = new Conversion[parameters.length];
+            int cost = 0;
+            for (int i = 0; i < parameters.length && cost >= 0; i++) {
+                conversions[i] = conversion(observed[i], parameters[i]);
+                cost = conversions[i] == null ? -1 : cost + cost(observed[i], parameters[i], conversions[i]);
+            }
+            if (cost >= 0 && cost < bestCost) {
+                best = candidate;
+                bestConversions = conversions;
+                bestCost = cost;
+            }
+        }
+        if (best == null) {
+            String message = "No overload of " + owner + (name != null ? "." + name.lexeme : "") +
+                    " takes " + describe(observed) + ".";
+            if (name == null) { throw new RuntimeError(message); }
+            throw new RuntimeError(name, message);
+        }
+
+        try {
+            MethodHandle handle;
+            Class<?> returnType;
+            if (best instanceof Constructor) {
+                handle = LOOKUP.unreflectConstructor((Constructor<?>) best);
+                returnType = Object.class;
+            } else {
+                handle = LOOKUP.unreflect((Method) best);
+                returnType = ((Method) best).getReturnType();
+            }
+            int count = handle.type().parameterCount();
+            handle = handle.asType(MethodType.genericMethodType(count))
+                    .asSpreader(Object[].class, count);
+            return new Invoker(observed, bestConversions, handle, resultConversion(returnType));
+        } catch (IllegalAccessException e) {
+            throw new RuntimeError(name, "Can't access " + best + ".");
+        }
+    }
+
+    /** How to pass a value of class observed as a parameter, or null if it can't be. */
+    private static Conversion conversion(Class<?> observed, Class<?> parameter) {
+        if (observed == null) { return parameter.isPrimitive() ? null : IDENTITY; }
+        if (observed == Long.class) {
+            if (parameter == long.class) { return IDENTITY; }
+            if (parameter == double.class || parameter == Double.class) { return TO_DOUBLE; }
+        }
+        if (observed == Double.class || observed == Long.class) {
+            if (parameter == double.class) { return IDENTITY; }
+            if (parameter == int.class || parameter == Integer.class) { return TO_INT; }
+            if (parameter == long.class || parameter == Long.class) { return TO_LONG; }
+            if (parameter == float.class || parameter == Float.class) { return TO_FLOAT; }
+            if (parameter == short.class || parameter == Short.class) { return TO_SHORT; }
+            if (parameter == byte.class || parameter == Byte.class) { return TO_BYTE; }
+        }
+        if (observed == Boolean.class && parameter == boolean.class) { return IDENTITY; }
+        if ((observed == LoxString.class || observed == LoxRope.class) &&
+                parameter.isAssignableFrom(String.class)) {
+            return TO_STRING;
+        }
+        if (parameter.isAssignableFrom(observed)) { return IDENTITY; }
+        if (LoxCallable.class.isAssignableFrom(observed) && parameter.isInterface()) {
+            return (interpreter, value) -> FunctionAdapters.adapt(interpreter.isolate, value, parameter);
+        }
+        return null;
+    }
+
+    /** Exact matches cost nothing, widening a little, converting more. */
+    private static int cost(Class<?> observed, Class<?> parameter, Conversion conversion) {
+        if (conversion != IDENTITY) { return 2; }
+        if (observed == parameter || parameter == boolean.class ||
+                parameter == (observed == Long.class ? long.class : double.class)) {
+            return 0;
+        }
+        return 1;
+    }
+
+    private static Conversion resultConversion(Class<?> type) {
+        if (type == void.class || type == double.class || type == Double.class ||
+                type == boolean.class || type == Boolean.class) {
+            return IDENTITY;
+        }
+        if (isIntegral(type)) { return FROM_INTEGER; }
+        if ((type.isPrimitive() && type != char.class) || Number.class.isAssignableFrom(type)) {
+            return FROM_NUMBER;
+        }
+        if (type == String.class || type == char.class || type == Character.class) { return FROM_STRING; }
+        return FROM_ANY;
+    }
+
+    /** long, int, short or byte, or their boxes: the results that are Lox integers. */
+    private static boolean isIntegral(Class<?> type) {
+        return type == long.class || type == Long.class || type == int.class || type == Integer.class ||
+                type == short.class || type == Short.class || type == byte.class || type == Byte.class;
+    }
+
+    /**
+     * A Java value as a Lox value: numbers and strings convert, objects
+     * stay Java objects. Integral numbers are Lox integers.
+     */
+    static Object toLox(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                value instanceof Byte) {
+            return Arithmetic.box(((Number) value).longValue());
+        }
+        if (value instanceof Number && !(value instanceof Double)) { return ((Number) value).doubleValue(); }
+        if (value instanceof String || value instanceof Character) { return LoxString.valueOf(value.toString()); }
+        return value;
+    }
+
+    private static Class<?> classOf(Object value) {
+        return value == null ? null : value.getClass();
+    }
+
+    private static String describe(Class<?>[] observed) {
+        List<String> names = new ArrayList<>();
+        for (Class<?> type : observed) {
+            if (type == null) {
+                names.add("nil");
+            } else if (type == Double.class) {
+                names.add("number");
+            } else if (type == Long.class) {
+                names.add("integer");
+            } else if (type == Boolean.class) {
+                names.add("boolean");
+            } else if (type == LoxString.class || type == LoxRope.class) {
+                names.add("string");
+            } else {
+                names.add(type.getSimpleName());
+            }
+        }
+        return "(" + String.join(", ", names) + ")";
+    }
+
+    private static RuntimeError javaError(Token name, Throwable t) {
+        if (t instanceof RuntimeError) { return (RuntimeError) t; }
+        if (t instanceof Error && !(t instanceof StackOverflowError)) { throw (Error) t; }
+        String message = t.getClass().getSimpleName() + (t.getMessage() != null ? ": " + t.getMessage() : "");
+        return name == null ? new RuntimeError(message) : new RuntimeError(name, message);
+    }
+}
@@ -0,0 +1,92 @@
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The body of a function that has been checked by a PreParser but not
+ * parsed yet.
+ *
+ * The statements are parsed from the tokens, and resolved with the state
+ * the Resolver was in at the function, the first time they are needed,
+ * usually when the function is first called. Until then the body costs a
+ * few fields instead of a tree of nodes. A body can be shared by threads.
+ */
+final class LazyBody extends AbstractList<Stmt> {
+    private TokenBuffer tokens;
+    /** the token after the body's '{' */
+    private final int start;
+    private final ErrorReporter reporter;
+    private final boolean inClass;
+    private final boolean inSubclass;
+    private final boolean inLoop;
+    /** Resolver errors the PreParser found in the body */
+    private final int[] errorTokens;
+    private final String[] errorMessages;
+
+    /** resolves the body once it is parsed, set when the function is resolved */
+    private Resolver resolver;
+    private volatile List<Stmt> statements;
+
+    LazyBody(TokenBuffer tokens, int start, ErrorReporter reporter, boolean inClass,
+             boolean inSubclass, boolean inLoop, int[] errorTokens, String[] errorMessages) {
+        this.tokens = tokens;
+        this.start = start;
+        this.reporter = reporter;
+        this.inClass = inClass;
+        this.inSubclass = inSubclass;
+        this.inLoop = inLoop;
+        this.errorTokens = errorTokens;
+        this.errorMessages = errorMessages;
+    }
+
+    boolean isParsed() {
+        return statements != null;
+    }
+
+    /**
+     * Called by the Resolver instead of resolving the body. Reports the
+     * errors the Resolver would have found, and keeps resolver, a copy of
+     * its state inside the function, to resolve the body when it is parsed.
+     */
+    synchronized void resolveLater(Resolver resolver, ErrorReporter reporter) {
+        for (int i = 0; i < errorTokens.length; i++) {
+            reporter.error(tokens.token(errorTokens[i]), errorMessages[i]);
+        }
+        this.resolver = resolver;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return statements().get(index);
+    }
+
+    @Override
+    public int size() {
+        return statements().size();
+    }
+
+    @Override
+    public Iterator<Stmt> iterator() {
+        return statements().iterator();
+    }
+
+    private List<Stmt> statements() {
+        List<Stmt> parsed = statements;
+        return parsed != null ? parsed : parse();
+    }
+
+    private synchronized List<Stmt> parse() {
+        if (statements != null) { return statements; }
+
+        Parser parser = new Parser(tokens, start, Integer.MAX_VALUE, reporter, true);
+        List<Stmt> parsed = parser.functionBody(inClass, inSubclass, inLoop);
+        if (resolver != null) { resolver.resolve(parsed); }
+
+        statements = parsed;
+        tokens = null;
+        resolver = null;
+        return parsed;
+    }
+}
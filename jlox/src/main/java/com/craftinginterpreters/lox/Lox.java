@@ -4,38 +4,139 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
 
 public class Lox {
     public Lox() {
 
     }
 
-    private static final Interpreter interpreter = new Interpreter();
+    /** the isolate the command line and the static methods run scripts in */
+    private static final Isolate isolate = new Isolate(
+            OutputBuffer.systemOut(OutputBuffer.FlushPolicy.SIZE), systemErr());
+    private static final Interpreter interpreter = isolate.interpreter;
+    // the state and options of isolate, copied in and out around each run
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    /** parse function bodies when they are first called */
+    static boolean lazyFunctions = false;
+    /** resolved programs from earlier runs, or null */
+    static AstCache cache = null;
 
     static final int ARG_ERR = 64;
     static final int SCAN_ERR = 65;
     static final int RUNTIME_ERR = 70;
+    static final int IO_ERR = 74;
+
+    /** How a script goes through the front end before running. */
+    enum Pipeline {
+        /** scan, parse and resolve everything, then run it */
+        SEQUENTIAL,
+        /** run each declaration as soon as it is parsed */
+        STREAM,
+        /** like SEQUENTIAL with parsing and resolving split across cores */
+        PARALLEL
+    }
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: ./jlox [script]");
-            System.exit(ARG_ERR);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String script = null;
+        OutputBuffer.FlushPolicy flush = null;
+        boolean asyncOutput = false;
+        Pipeline pipeline = Pipeline.SEQUENTIAL;
+        Path image = null;
+        Path saveImage = null;
+        for (String arg : args) {
+            if (arg.startsWith("--flush=")) {
+                flush = flushPolicy(arg.substring("--flush=".length()));
+            } else if (arg.equals("--async-output")) {
+                asyncOutput = true;
+            } else if (arg.equals("--stream") && pipeline == Pipeline.SEQUENTIAL) {
+                pipeline = Pipeline.STREAM;
+            } else if (arg.equals("--parallel") && pipeline == Pipeline.SEQUENTIAL) {
+                pipeline = Pipeline.PARALLEL;
+            } else if (arg.equals("--lazy")) {
+                lazyFunctions = true;
+            } else if (arg.startsWith("--cache=")) {
+                cache = new AstCache(Paths.get(arg.substring("--cache=".length())));
+            } else if (arg.startsWith("--java=")) {
+                allowJava(arg.substring("--java=".length()));
+            } else if (arg.startsWith("--image=")) {
+                image = Paths.get(arg.substring("--image=".length()));
+            } else if (arg.startsWith("--save-image=")) {
+                saveImage = Paths.get(arg.substring("--save-image=".length()));
+            } else if (arg.startsWith("--") || script != null) {
+                usage();
+            } else {
+                script = arg;
+            }
+        }
+
+        if (saveImage != null && script == null) { usage(); }
+        // start from the globals of a prelude that ran before
+        if (image != null) { Snapshot.restore(image, interpreter); }
+
+        if (script != null) {
+            if (flush == null) { flush = OutputBuffer.FlushPolicy.SIZE; }
+            interpreter.setOutput(OutputBuffer.stdout(flush, asyncOutput));
+            runFile(script, pipeline);
+            // only reached if the script ran without errors
+            if (saveImage != null) { saveImage(saveImage); }
         } else {
+            if (flush == null) { flush = OutputBuffer.FlushPolicy.NEWLINE; }
+            interpreter.setOutput(OutputBuffer.systemOut(flush));
             runPrompt();
         }
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    private static void saveImage(Path path) {
+        try {
+            Snapshot.save(interpreter, path);
+        } catch (IOException e) {
+            System.err.println("Can't save image " + path + ": " + e.getMessage());
+            System.exit(IO_ERR);
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: ./jlox [--flush=exit|size|newline] [--async-output] [--stream|--parallel] [--lazy] [--cache=dir] [--java=class,...] [--image=file] [--save-image=file] [script]");
+        System.exit(ARG_ERR);
+    }
+
+    /** Let scripts use the comma-separated Java classes in names. */
+    private static void allowJava(String names) {
+        for (String name : names.split(",")) {
+            try {
+                isolate.allowJava(Class.forName(name));
+            } catch (ClassNotFoundException | IllegalArgumentException e) {
+                System.err.println("Can't use Java class " + name + ".");
+                System.exit(ARG_ERR);
+            }
+        }
+    }
+
+    private static OutputBuffer.FlushPolicy flushPolicy(String name) {
+        switch (name) {
+            case "exit":    return OutputBuffer.FlushPolicy.EXIT;
+            case "size":    return OutputBuffer.FlushPolicy.SIZE;
+            case "newline": return OutputBuffer.FlushPolicy.NEWLINE;
+        }
+        usage();
+        return null;
+    }
+
+    private static void runFile(String path, Pipeline pipeline) throws IOException {
+        // scan the file in place instead of copying it into a String
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            run(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), pipeline);
+        }
+        interpreter.getOutput().close();
 
         // Indicate error in exit code
         if (hadError) { System.exit(SCAN_ERR); }
@@ -56,43 +157,67 @@ public class Lox {
     }
 
     public static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        if (hadError) { return; } // parser error
-
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        run(source, Pipeline.SEQUENTIAL);
+    }
 
-        if (hadError) { return; } // resolution error
-        interpreter.interpret(statements);
+    static void run(String source, Pipeline pipeline) {
+        run(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), pipeline);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    private static void run(ByteBuffer source, Pipeline pipeline) {
+        isolate.lazyFunctions = lazyFunctions;
+        isolate.cache = cache;
+        isolate.run(source, pipeline);
+        hadError |= isolate.hadError;
+        hadRuntimeError |= isolate.hadRuntimeError;
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    /**
+     * Reports errors in the shared isolate, for code that is not run by
+     * an isolate, like tests that call the Parser directly.
+     */
+    static final ErrorReporter REPORTER = new ErrorReporter() {
+        @Override
+        public void error(int line, String message) {
+            Lox.error(line, message);
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            Lox.error(token, message);
         }
+    };
+
+    static void error(int line, String message) {
+        isolate.error(line, message);
+        hadError = true;
     }
 
-    static void report(int line, String where, String message) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[line ").append(line).append("]");
-        sb.append(" ");
-        sb.append("Error").append(where).append(": ").append(message);
-        System.err.println(sb.toString());
+    static void error(Token token, String message) {
+        isolate.error(token, message);
         hadError = true;
     }
 
-    public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + error.getTokenMsg());
-        hadRuntimeError = true;
+    /**
+     * Write to whatever System.err is at the time, so callers that
+     * redirect it see the errors. Errors are UTF-8 like printed output.
+     */
+    private static PrintStream systemErr() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                System.err.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                System.err.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                System.err.flush();
+            }
+        }, true, StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,163 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lox's built-in dynamic array, made by Array().
+ *
+ * While every element is a double they are kept unboxed in a double[], and
+ * an array whose first element is an integer keeps its integers unboxed in
+ * a long[] the same way. The first element that doesn't fit moves them all
+ * to an Object[] for good, until clear() empties the array. Either way the
+ * storage doubles when it fills, so push() is amortized constant time.
+ * get() boxes the number it returns like any other arithmetic result.
+ */
+final class LoxArray implements NativeObject {
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** the elements while all are doubles, else null */
+    private double[] numbers = new double[INITIAL_CAPACITY];
+    /** the elements while all are integers, else null */
+    private long[] integers = null;
+    /** the elements once they aren't all doubles or all integers, else null */
+    private Object[] objects = null;
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    Object get(int index) {
+        if (numbers != null) { return numbers[index]; }
+        if (integers != null) { return Arithmetic.box(integers[index]); }
+        return objects[index];
+    }
+
+    void set(int index, Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[index] = (Double) value;
+                return;
+            }
+            box();
+        } else if (integers != null) {
+            if (value instanceof Long) {
+                integers[index] = (Long) value;
+                return;
+            }
+            box();
+        }
+        objects[index] = value;
+    }
+
+    void push(Object value) {
+        // an empty array takes the storage its first element fits
+        if (size == 0 && numbers != null && value instanceof Long) {
+            integers = new long[numbers.length];
+            numbers = null;
+        }
+        if (numbers != null && value instanceof Double) {
+            if (size == numbers.length) { numbers = Arrays.copyOf(numbers, size * 2); }
+            numbers[size++] = (Double) value;
+            return;
+        }
+        if (integers != null && value instanceof Long) {
+            if (size == integers.length) { integers = Arrays.copyOf(integers, size * 2); }
+            integers[size++] = (Long) value;
+            return;
+        }
+        if (objects == null) { box(); }
+        if (size == objects.length) { objects = Arrays.copyOf(objects, size * 2); }
+        objects[size++] = value;
+    }
+
+    Object pop() {
+        Object value = get(size - 1);
+        if (objects != null) { objects[size - 1] = null; }
+        size--;
+        return value;
+    }
+
+    void clear() {
+        numbers = new double[INITIAL_CAPACITY];
+        integers = null;
+        objects = null;
+        size = 0;
+    }
+
+    /** Move the elements from numbers or integers to objects. */
+    private void box() {
+        int capacity = numbers != null ? numbers.length : integers.length;
+        objects = new Object[Math.max(capacity, INITIAL_CAPACITY)];
+        for (int i = 0; i < size; i++) { objects[i] = get(i); }
+        numbers = null;
+        integers = null;
+    }
+
+    @Override
+    public boolean hasMethod(String name) {
+        switch (name) {
+            case "get": case "set": case "push": case "pop": case "length": case "clear":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public Object invoke(Interpreter interpreter, Token name, List<Object> arguments) {
+        switch (name.lexeme) {
+            case "get":
+                NativeObject.checkArity(name, arguments, 1);
+                return get(index(name, arguments.get(0)));
+            case "set":
+                NativeObject.checkArity(name, arguments, 2);
+                set(index(name, arguments.get(0)), arguments.get(1));
+                return arguments.get(1);
+            case "push":
+                NativeObject.checkArity(name, arguments, 1);
+                push(arguments.get(0));
+                return null;
+            case "pop":
+                NativeObject.checkArity(name, arguments, 0);
+                if (size == 0) { throw new RuntimeError(name, "Can't pop an empty array."); }
+                return pop();
+            case "length":
+                NativeObject.checkArity(name, arguments, 0);
+                return Arithmetic.box(size);
+            case "clear":
+                NativeObject.checkArity(name, arguments, 0);
+                clear();
+                return null;
+            default:
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+    }
+
+    /** value as an index of an element. */
+    private int index(Token name, Object value) {
+        if (!Arithmetic.isNumber(value)) {
+            throw new RuntimeError(name, "Array index must be a number.");
+        }
+        double index = Arithmetic.toDouble(value);
+        if (index != (int) index) {
+            throw new RuntimeError(name, "Array index must be an integer.");
+        }
+        if (index < 0 || index >= size) {
+            throw new RuntimeError(name, "Array index " + NumberFormatter.toString(index) +
+                    " out of bounds for length " + size + ".");
+        }
+        return (int) index;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) { text.append(", "); }
+            text.append(Interpreter.stringify(get(i)));
+        }
+        return text.append("]").toString();
+    }
+}
@@ -3,6 +3,7 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 public interface LoxCallable {
+    /** the number of arguments, or -1 if call() checks them itself */
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);
 }
\ No newline at end of file
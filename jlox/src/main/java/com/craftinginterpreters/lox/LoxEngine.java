@@ -0,0 +1,98 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles scripts for Java programs that embed Lox.
+ *
+ * compile() keeps the scripts it compiled most recently, so compiling the
+ * same source again costs a map lookup instead of the Scanner, Parser and
+ * Resolver. The cache is a LinkedHashMap in access order keyed by the
+ * source, found by the source's hash and then compared, and the least
+ * recently used script is dropped once it holds cacheSize scripts.
+ *
+ * An engine can be shared by threads. The cache's lock is not held while
+ * compiling, so two threads compiling the same new source may both do the
+ * work; both get the script that is kept.
+ */
+public final class LoxEngine {
+    static final int DEFAULT_CACHE_SIZE = 256;
+
+    private final Map<String, CompiledScript> scripts;
+
+    public LoxEngine() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /** An engine that keeps up to cacheSize compiled scripts. */
+    public LoxEngine(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size can't be negative.");
+        }
+        this.scripts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Return source compiled, from the cache if it was compiled recently.
+     *
+     * @throws CompileError if source has syntax or resolution errors
+     */
+    public CompiledScript compile(String source) {
+        CompiledScript script;
+        synchronized (scripts) {
+            script = scripts.get(source);
+        }
+        if (script != null) { return script; }
+
+        script = compileUncached(source);
+        synchronized (scripts) {
+            CompiledScript raced = scripts.putIfAbsent(source, script);
+            return raced != null ? raced : script;
+        }
+    }
+
+    /** Number of compiled scripts in the cache. */
+    int cachedScripts() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    private static CompiledScript compileUncached(String source) {
+        Errors errors = new Errors();
+        ByteBuffer bytes = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+        TokenBuffer tokens = new Scanner(bytes, errors).scanTokens();
+        List<Stmt> statements = new Parser(tokens, errors, false).parse();
+        if (errors.messages.isEmpty()) {
+            new Resolver(errors).resolve(statements);
+        }
+
+        if (!errors.messages.isEmpty()) { throw new CompileError(errors.messages); }
+        return new CompiledScript(statements);
+    }
+
+    /** Collects the errors of one compile. */
+    private static final class Errors implements ErrorReporter {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void error(int line, String message) {
+            messages.add(ErrorReporter.format(line, message));
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            messages.add(ErrorReporter.format(token, message));
+        }
+    }
+}
@@ -4,10 +4,10 @@ import java.util.List;
 
 public class LoxFunction implements LoxCallable{
 
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    final Stmt.Function declaration;
+    final Environment closure;
 
-    private final boolean isInitializer;
+    final boolean isInitializer;
 
     LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
         this.isInitializer = isInitializer;
@@ -26,6 +26,39 @@ public class LoxFunction implements LoxCallable{
         for (int i = 0; i < declaration.params.size(); i++) {
             environment.define(declaration.params.get(i).lexeme, arguments.get(i));
         }
+        return run(interpreter, environment);
+    }
+
+    // Calls that take their arguments directly instead of in a List, for
+    // FunctionAdapters. The caller has checked the arity.
+
+    Object call(Interpreter interpreter) {
+        return run(interpreter, new Environment(closure));
+    }
+
+    Object call(Interpreter interpreter, Object a) {
+        Environment environment = new Environment(closure);
+        environment.define(declaration.params.get(0).lexeme, a);
+        return run(interpreter, environment);
+    }
+
+    Object call(Interpreter interpreter, Object a, Object b) {
+        Environment environment = new Environment(closure);
+        environment.define(declaration.params.get(0).lexeme, a);
+        environment.define(declaration.params.get(1).lexeme, b);
+        return run(interpreter, environment);
+    }
+
+    Object call(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment environment = new Environment(closure);
+        environment.define(declaration.params.get(0).lexeme, a);
+        environment.define(declaration.params.get(1).lexeme, b);
+        environment.define(declaration.params.get(2).lexeme, c);
+        return run(interpreter, environment);
+    }
+
+    /** Run the body in environment, which holds the parameters. */
+    private Object run(Interpreter interpreter, Environment environment) {
         try {
             interpreter.executeBlock(declaration.body, environment);
         } catch(Return returnValue) {
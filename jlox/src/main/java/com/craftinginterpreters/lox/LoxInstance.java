@@ -5,8 +5,8 @@ import java.util.List;
 import java.util.Map;
 
 public class LoxInstance {
-    private LoxClass clazz;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass clazz;
+    final Map<String, Object> fields = new HashMap<>();
 
     LoxInstance(LoxClass clazz) {
         this.clazz = clazz;
@@ -0,0 +1,266 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * Lox's built-in hash map, made by Map().
+ *
+ * An open-addressing table with linear probing and tombstones, like
+ * clox/table.c, but with any value other than nil as a key. Numbers and
+ * booleans are keys by value, an integer and the double equal to it being
+ * the same key, strings by their characters and everything
+ * else, like instances, by identity. Strings are interned, so they compare
+ * by identity and hash with the hash LoxString keeps; ropes are flattened
+ * first. Number keys have their own probe loop that compares bits instead
+ * of calling equals(), with -0 stored as 0 so both find the same entry.
+ *
+ * Each slot's hash is kept next to its key, so growing the table doesn't
+ * hash the keys again and most mismatches are found without looking at
+ * the key.
+ */
+final class LoxMap implements NativeObject {
+    private static final double MAX_LOAD = 0.75;
+    /** the value of a deleted entry, whose key is null */
+    private static final Object TOMBSTONE = new Object();
+
+    private Object[] keys = new Object[0];
+    private Object[] values = new Object[0];
+    private int[] hashes = new int[0];
+    /** entries in use, tombstones included */
+    private int count = 0;
+    /** entries in use, tombstones excluded */
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    /** slots in the table, tombstones and empty ones included */
+    int capacity() {
+        return keys.length;
+    }
+
+    Object get(Object key) {
+        if (size == 0) { return null; }
+        int slot = key instanceof Double ? findNumber((Double) key) : find(key, hash(key));
+        return keys[slot] == null ? null : values[slot];
+    }
+
+    boolean has(Object key) {
+        if (size == 0) { return false; }
+        int slot = key instanceof Double ? findNumber((Double) key) : find(key, hash(key));
+        return keys[slot] != null;
+    }
+
+    void set(Object key, Object value) {
+        if (count + 1 > keys.length * MAX_LOAD) { rehash(); }
+        int hash = hash(key);
+        int slot = key instanceof Double ? findNumber((Double) key) : find(key, hash);
+        if (keys[slot] == null) {
+            size++;
+            // a reused tombstone is already counted
+            if (values[slot] != TOMBSTONE) { count++; }
+            keys[slot] = key;
+            hashes[slot] = hash;
+        }
+        values[slot] = value;
+    }
+
+    boolean remove(Object key) {
+        if (size == 0) { return false; }
+        int slot = key instanceof Double ? findNumber((Double) key) : find(key, hash(key));
+        if (keys[slot] == null) { return false; }
+        keys[slot] = null;
+        values[slot] = TOMBSTONE;
+        size--;
+        return true;
+    }
+
+    /** The keys in use, in slot order. */
+    LoxArray keys() {
+        return entries(keys);
+    }
+
+    /** The values of keys(), in the same order. */
+    LoxArray values() {
+        return entries(values);
+    }
+
+    void clear() {
+        keys = new Object[0];
+        values = new Object[0];
+        hashes = new int[0];
+        count = 0;
+        size = 0;
+    }
+
+    /**
+     * The slot holding key, or else the slot to put it in: the first
+     * tombstone passed or the empty slot that ended the probe.
+     */
+    private int find(Object key, int hash) {
+        int mask = keys.length - 1;
+        int tombstone = -1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Object candidate = keys[slot];
+            if (candidate == null) {
+                if (values[slot] != TOMBSTONE) { return tombstone != -1 ? tombstone : slot; }
+                if (tombstone == -1) { tombstone = slot; }
+            } else if (candidate == key || (hashes[slot] == hash &&
+                    (key instanceof Boolean || key instanceof Long) && key.equals(candidate))) {
+                return slot;
+            }
+        }
+    }
+
+    /** find() for a number key, comparing bits. */
+    private int findNumber(double key) {
+        long bits = Double.doubleToLongBits(key == 0.0 ? 0.0 : key);
+        int hash = hashNumber(bits);
+        int mask = keys.length - 1;
+        int tombstone = -1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Object candidate = keys[slot];
+            if (candidate == null) {
+                if (values[slot] != TOMBSTONE) { return tombstone != -1 ? tombstone : slot; }
+                if (tombstone == -1) { tombstone = slot; }
+            } else if (hashes[slot] == hash && candidate instanceof Double &&
+                    Double.doubleToLongBits((Double) candidate) == bits) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Drop the tombstones, doubling the table first unless the entries in
+     * use fill no more than half of what it may hold, or make the first
+     * one. Setting and removing keys in turn fills the table with
+     * tombstones, which are then cleared without growing.
+     */
+    private void rehash() {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        int capacity = keys.length;
+        if (capacity == 0) {
+            capacity = 8;
+        } else if (size + 1 > capacity * MAX_LOAD / 2) {
+            capacity *= 2;
+        }
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+        count = size;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) { continue; }
+            int slot = oldHashes[i] & mask;
+            while (keys[slot] != null) { slot = (slot + 1) & mask; }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    private static int hash(Object key) {
+        int hash;
+        if (key instanceof LoxString) {
+            hash = ((LoxString) key).hash;
+        } else if (key instanceof Double) {
+            double number = (Double) key;
+            return hashNumber(Double.doubleToLongBits(number == 0.0 ? 0.0 : number));
+        } else if (key instanceof Boolean || key instanceof Long) {
+            hash = key.hashCode();
+        } else {
+            hash = System.identityHashCode(key);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int hashNumber(long bits) {
+        // the low bits of small integers are all zero, so mix in the high ones
+        long mixed = bits * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    /**
+     * value as a key: not nil, with ropes flattened, -0 as 0 and integers
+     * equal to some double as that double.
+     */
+    private static Object key(Token name, Object value) {
+        if (value == null) { throw new RuntimeError(name, "Map keys can't be nil."); }
+        if (value instanceof LoxRope) { return ((LoxRope) value).flatten(); }
+        if (value instanceof Double && (Double) value == 0.0) { return 0.0; }
+        if (value instanceof Long && Arithmetic.equal((Long) value, (double) (Long) value)) {
+            return (double) (Long) value;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean hasMethod(String name) {
+        switch (name) {
+            case "get": case "set": case "has": case "remove": case "size":
+            case "keys": case "values": case "clear":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public Object invoke(Interpreter interpreter, Token name, List<Object> arguments) {
+        switch (name.lexeme) {
+            case "get":
+                NativeObject.checkArity(name, arguments, 1);
+                return get(key(name, arguments.get(0)));
+            case "set":
+                NativeObject.checkArity(name, arguments, 2);
+                set(key(name, arguments.get(0)), arguments.get(1));
+                return arguments.get(1);
+            case "has":
+                NativeObject.checkArity(name, arguments, 1);
+                return has(key(name, arguments.get(0)));
+            case "remove":
+                NativeObject.checkArity(name, arguments, 1);
+                return remove(key(name, arguments.get(0)));
+            case "size":
+                NativeObject.checkArity(name, arguments, 0);
+                return Arithmetic.box(size);
+            case "keys":
+                NativeObject.checkArity(name, arguments, 0);
+                return keys();
+            case "values":
+                NativeObject.checkArity(name, arguments, 0);
+                return values();
+            case "clear":
+                NativeObject.checkArity(name, arguments, 0);
+                clear();
+                return null;
+            default:
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+    }
+
+    /** An Array of the entries of keys or values that are in use. */
+    private LoxArray entries(Object[] column) {
+        LoxArray array = new LoxArray();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) { array.push(column[i]); }
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) { continue; }
+            if (text.length() > 1) { text.append(", "); }
+            text.append(Interpreter.stringify(keys[i])).append(": ")
+                    .append(Interpreter.stringify(values[i]));
+        }
+        return text.append("}").toString();
+    }
+}
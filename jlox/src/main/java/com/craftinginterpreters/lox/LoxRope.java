@@ -0,0 +1,103 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Lazy string concatenation.
+ *
+ * The + operator makes a rope node pointing at its two operands instead of
+ * copying their characters. The characters are only copied when the string
+ * is flattened, which happens the first time it is printed, compared or
+ * hashed. The flattened string is interned like every other LoxString and
+ * the children are dropped.
+ *
+ * Leaves are LoxStrings, or plain Strings for the text of non-string
+ * operands such as numbers.
+ */
+final class LoxRope {
+    private Object left;
+    private Object right;
+    private LoxString flat;
+    final int length;
+
+    private LoxRope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    /**
+     * Concatenate two pieces of text. At least one of them must be a
+     * LoxString or LoxRope, the other may also be a String.
+     */
+    static Object concat(Object left, Object right) {
+        int leftLength = length(left);
+        int rightLength = length(right);
+        if (leftLength == 0 && isLoxString(right)) { return right; }
+        if (rightLength == 0 && isLoxString(left)) { return left; }
+        return new LoxRope(left, right, leftLength + rightLength);
+    }
+
+    /** Return the interned string for this rope, building it if needed. */
+    LoxString flatten() {
+        if (flat == null) {
+            StringBuilder sb = new StringBuilder(length);
+            appendTo(sb::append);
+            flat = LoxString.valueOf(sb.toString());
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    /**
+     * Pass the pieces of this rope to sink in order, without flattening it.
+     * Walks the tree with an explicit stack, since ropes built in a loop are
+     * as deep as the loop is long.
+     */
+    void appendTo(Consumer<String> sink) {
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Object node = stack.pop();
+            if (node instanceof LoxRope) {
+                LoxRope rope = (LoxRope) node;
+                if (rope.flat != null) {
+                    sink.accept(rope.flat.chars);
+                } else {
+                    stack.push(rope.right);
+                    stack.push(rope.left);
+                }
+            } else {
+                sink.accept(node.toString());
+            }
+        }
+    }
+
+    private static boolean isLoxString(Object text) {
+        return text instanceof LoxString || text instanceof LoxRope;
+    }
+
+    private static int length(Object text) {
+        if (text instanceof LoxRope) { return ((LoxRope) text).length; }
+        if (text instanceof LoxString) { return ((LoxString) text).length(); }
+        return ((String) text).length();
+    }
+
+    @Override
+    public int hashCode() {
+        return flatten().hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof LoxRope) { other = ((LoxRope) other).flatten(); }
+        return flatten() == other;
+    }
+
+    @Override
+    public String toString() {
+        return flatten().chars;
+    }
+}
@@ -0,0 +1,253 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+/**
+ * The JSR-223 engine for Lox, found by ScriptEngineManager through
+ * LoxScriptEngineFactory.
+ *
+ * The engine scope bindings are a GlobalBindings, the globals of an
+ * Isolate, and scripts run in that isolate. With any other Bindings a
+ * script runs in a new isolate whose globals are copied from the bindings
+ * and copied back afterwards. Compiled scripts are a CompiledScript from
+ * a LoxEngine. Invocable calls Lox functions and methods directly, without
+ * evaluating any source. eval() returns null since Lox statements have no
+ * value.
+ *
+ * An engine runs one script at a time, like an isolate.
+ */
+public final class LoxScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+    private final LoxScriptEngineFactory factory;
+    private final LoxEngine compiler = new LoxEngine();
+
+    LoxScriptEngine(LoxScriptEngineFactory factory) {
+        this.factory = factory;
+        context.setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return eval(compileScript(script), context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new GlobalBindings(newIsolate());
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public javax.script.CompiledScript compile(String script) throws ScriptException {
+        CompiledScript compiled = compileScript(script);
+        return new javax.script.CompiledScript() {
+            @Override
+            public Object eval(ScriptContext context) throws ScriptException {
+                return LoxScriptEngine.this.eval(compiled, context);
+            }
+
+            @Override
+            public javax.script.ScriptEngine getEngine() {
+                return LoxScriptEngine.this;
+            }
+        };
+    }
+
+    @Override
+    public javax.script.CompiledScript compile(Reader script) throws ScriptException {
+        return compile(read(script));
+    }
+
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        Isolate isolate = engineIsolate();
+        Object function = isolate.interpreter.globals.values.get(name);
+        if (!(function instanceof LoxCallable)) {
+            throw new NoSuchMethodException("No function " + name + ".");
+        }
+        return call(isolate, (LoxCallable) function, args);
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
+        if (!(thiz instanceof LoxInstance)) {
+            throw new IllegalArgumentException("Methods can only be invoked on Lox instances.");
+        }
+        LoxCallable method = method((LoxInstance) thiz, name);
+        if (method == null) {
+            throw new NoSuchMethodException("No method " + name + ".");
+        }
+        return call(engineIsolate(), method, args);
+    }
+
+    @Override
+    public <T> T getInterface(Class<T> type) {
+        Map<String, Object> globals = engineIsolate().interpreter.globals.values;
+        return implement(type, name -> globals.get(name) instanceof LoxCallable,
+                (name, args) -> invokeFunction(name, args));
+    }
+
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> type) {
+        if (!(thiz instanceof LoxInstance)) {
+            throw new IllegalArgumentException("Only Lox instances can implement interfaces.");
+        }
+        LoxInstance instance = (LoxInstance) thiz;
+        return implement(type, name -> method(instance, name) != null,
+                (name, args) -> invokeMethod(instance, name, args));
+    }
+
+    private interface Invoker {
+        Object invoke(String name, Object[] args) throws Exception;
+    }
+
+    /**
+     * A proxy that calls the Lox function named like each interface
+     * method, or null if some method has no function.
+     */
+    private <T> T implement(Class<T> type, Predicate<String> exists, Invoker invoker) {
+        if (type == null || !type.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + type);
+        }
+        for (Method method : type.getMethods()) {
+            if (Modifier.isAbstract(method.getModifiers()) && !exists.test(method.getName())) {
+                return null;
+            }
+        }
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (self, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":   return self == args[0];
+                            case "hashCode": return System.identityHashCode(self);
+                            default:         return "<Lox " + type.getSimpleName() + ">";
+                        }
+                    }
+                    Object result = invoker.invoke(method.getName(), args == null ? new Object[0] : args);
+                    return LoxValues.toJava(result, method.getReturnType());
+                });
+        return type.cast(proxy);
+    }
+
+    private static LoxCallable method(LoxInstance instance, String name) {
+        Object field = instance.fields.get(name);
+        if (field instanceof LoxCallable) { return (LoxCallable) field; }
+        LoxFunction method = instance.clazz.findMethod(name);
+        return method == null ? null : method.bind(instance);
+    }
+
+    private Object call(Isolate isolate, LoxCallable function, Object[] args) throws ScriptException {
+        if (function.arity() >= 0 && args.length != function.arity()) {
+            throw new ScriptException("Expected " + function.arity() +
+                    " arguments but got " + args.length + ".");
+        }
+        List<Object> arguments = new ArrayList<>(args.length);
+        for (Object arg : args) { arguments.add(LoxValues.toLox(arg)); }
+        try {
+            return LoxValues.toJava(function.call(isolate.interpreter, arguments));
+        } catch (RuntimeError error) {
+            throw scriptException(error);
+        } finally {
+            isolate.interpreter.getOutput().flush();
+        }
+    }
+
+    private CompiledScript compileScript(String script) throws ScriptException {
+        try {
+            return compiler.compile(script);
+        } catch (CompileError error) {
+            throw new ScriptException(error.getMessage());
+        }
+    }
+
+    private Object eval(CompiledScript script, ScriptContext context) throws ScriptException {
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (bindings instanceof GlobalBindings) {
+            run(((GlobalBindings) bindings).isolate, script, context);
+            return null;
+        }
+
+        // plain Bindings: copy the variables in and out of a new isolate
+        Isolate isolate = newIsolate();
+        GlobalBindings globals = new GlobalBindings(isolate);
+        globals.putAll(bindings);
+        try {
+            run(isolate, script, context);
+        } finally {
+            for (Map.Entry<String, Object> entry : globals.entrySet()) {
+                if (!isolate.interpreter.natives.containsKey(entry.getKey())) {
+                    bindings.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    private void run(Isolate isolate, CompiledScript script, ScriptContext context) throws ScriptException {
+        isolate.setOutput(
+                new OutputBuffer(new WriterChannel(context.getWriter()), OutputBuffer.FlushPolicy.SIZE,
+                        OutputBuffer.DEFAULT_CAPACITY, false),
+                new PrintStream(Channels.newOutputStream(new WriterChannel(context.getErrorWriter())),
+                        true, StandardCharsets.UTF_8));
+        try {
+            isolate.executeOrThrow(script.statements());
+        } catch (RuntimeError error) {
+            throw scriptException(error);
+        }
+    }
+
+    /** The isolate of the default context, for Invocable. */
+    private Isolate engineIsolate() {
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (!(bindings instanceof GlobalBindings)) {
+            throw new IllegalStateException("The engine scope bindings are not Lox globals.");
+        }
+        return ((GlobalBindings) bindings).isolate;
+    }
+
+    private Isolate newIsolate() {
+        return new Isolate(OutputBuffer.systemOut(OutputBuffer.FlushPolicy.SIZE), System.err);
+    }
+
+    private static ScriptException scriptException(RuntimeError error) {
+        int line = error.token != null ? error.token.line : -1;
+        return new ScriptException(error.getMessage(), null, line);
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        StringWriter source = new StringWriter();
+        try {
+            reader.transferTo(source);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return source.toString();
+    }
+}
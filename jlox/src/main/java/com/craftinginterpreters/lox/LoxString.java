@@ -0,0 +1,47 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Lox string value.
+ *
+ * Strings are interned in {@link StringTable}, so two LoxStrings with the
+ * same characters are always the same object. Equality is an identity check
+ * and the hash is computed once when the string is created.
+ */
+final class LoxString {
+    final String chars;
+    final int hash;
+
+    LoxString(String chars, int hash) {
+        this.chars = chars;
+        this.hash = hash;
+    }
+
+    /** Return the interned LoxString for chars. */
+    static LoxString valueOf(String chars) {
+        return StringTable.intern(chars);
+    }
+
+    /** FNV-1a, same as hash_string() in clox. */
+    static int hash(String chars) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < chars.length(); i++) {
+            hash ^= chars.charAt(i);
+            hash *= 16777619;
+        }
+        return hash;
+    }
+
+    int length() {
+        return chars.length();
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return chars;
+    }
+}
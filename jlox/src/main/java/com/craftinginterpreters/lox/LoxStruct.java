@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A struct declaration: struct Point { x, y, z }.
+ *
+ * Unlike a class, a struct fixes its fields when it is declared, so each
+ * field has a slot and every instance is just its slots. Calling the
+ * struct takes one argument per field, in order. Structs have no methods.
+ *
+ * The Resolver hints the slot of a field name at each get and set; the
+ * hint is checked against the name before it is used, since the same
+ * name may be another struct's field or a class's.
+ */
+public class LoxStruct implements LoxCallable {
+    final String name;
+    final String[] fields;
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    LoxStruct(String name, String[] fields) {
+        this.name = name;
+        this.fields = fields;
+        for (int i = 0; i < fields.length; i++) { slots.put(fields[i], i); }
+    }
+
+    /** The slot of the field name, trying hint first, or -1 if there is none. */
+    int slot(String name, int hint) {
+        if (hint >= 0 && hint < fields.length && fields[hint].equals(name)) { return hint; }
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        LoxStructInstance instance = new LoxStructInstance(this);
+        for (int i = 0; i < fields.length; i++) { instance.set(i, arguments.get(i)); }
+        return instance;
+    }
+
+    @Override
+    public int arity() {
+        return fields.length;
+    }
+
+    @Override
+    public String toString() {
+        return "<struct " + name + ">";
+    }
+}
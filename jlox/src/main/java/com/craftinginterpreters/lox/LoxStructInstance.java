@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * An instance of a LoxStruct.
+ *
+ * Fields holding a double are kept unboxed in numbers. A field holding
+ * anything else, nil included, is kept in objects instead, which is only
+ * made once some field needs it. A struct of numbers is then two objects
+ * with no per-field boxes or map entries, where a LoxInstance has a HashMap
+ * node and a Double per field.
+ */
+public class LoxStructInstance {
+    /** stands for nil in objects, where null means the field is a number */
+    private static final Object NIL = new Object();
+
+    final LoxStruct struct;
+    private final double[] numbers;
+    private Object[] objects = null;
+
+    LoxStructInstance(LoxStruct struct) {
+        this.struct = struct;
+        this.numbers = new double[struct.fields.length];
+    }
+
+    Object get(int slot) {
+        if (objects != null && objects[slot] != null) {
+            return objects[slot] == NIL ? null : objects[slot];
+        }
+        return numbers[slot];
+    }
+
+    void set(int slot, Object value) {
+        if (value instanceof Double) {
+            numbers[slot] = (Double) value;
+            if (objects != null) { objects[slot] = null; }
+            return;
+        }
+        if (objects == null) { objects = new Object[numbers.length]; }
+        objects[slot] = value == null ? NIL : value;
+    }
+
+    /** The field name, whose slot the Resolver hinted is hint. */
+    Object get(Token name, int hint) {
+        int slot = struct.slot(name.lexeme, hint);
+        if (slot < 0) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        return get(slot);
+    }
+
+    void set(Token name, int hint, Object value) {
+        int slot = struct.slot(name.lexeme, hint);
+        if (slot < 0) {
+            throw new RuntimeError(name, "Struct " + struct.name + " has no field '" + name.lexeme + "'.");
+        }
+        set(slot, value);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(struct.name).append("(");
+        for (int i = 0; i < numbers.length; i++) {
+            if (i > 0) { text.append(", "); }
+            text.append(struct.fields[i]).append(": ").append(Interpreter.stringify(get(i)));
+        }
+        return text.append(")").toString();
+    }
+}
@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Converts values between Java and Lox for embedding hosts.
+ *
+ * Longs are Lox integers and any other Java Number becomes a Double. Java strings
+ * become interned LoxStrings, and Lox strings and ropes go back to Java as
+ * Strings. Functions, classes, structs, instances and native objects like arrays
+ * pass through as they are.
+ */
+final class LoxValues {
+    private LoxValues() {}
+
+    static Object toLox(Object value) {
+        if (value == null || value instanceof Double || value instanceof Long ||
+                value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Number) { return ((Number) value).doubleValue(); }
+        if (value instanceof CharSequence || value instanceof Character) {
+            return LoxString.valueOf(value.toString());
+        }
+        if (value instanceof LoxString || value instanceof LoxRope ||
+                value instanceof LoxCallable || value instanceof LoxInstance ||
+                value instanceof LoxStructInstance || value instanceof NativeObject) {
+            return value;
+        }
+        throw new IllegalArgumentException("Can't pass a " + value.getClass().getName() + " to Lox.");
+    }
+
+    static Object toJava(Object value) {
+        if (value instanceof LoxString) { return ((LoxString) value).chars; }
+        if (value instanceof LoxRope) { return ((LoxRope) value).flatten().chars; }
+        return value;
+    }
+
+    /**
+     * Convert a value for a Java method returning type. Numbers convert to
+     * the int, long, float or double the method returns.
+     */
+    static Object toJava(Object value, Class<?> type) {
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == int.class || type == Integer.class) { return number.intValue(); }
+            if (type == long.class || type == Long.class) { return number.longValue(); }
+            if (type == float.class || type == Float.class) { return number.floatValue(); }
+            if (type == double.class || type == Double.class) { return number.doubleValue(); }
+        }
+        return toJava(value);
+    }
+}
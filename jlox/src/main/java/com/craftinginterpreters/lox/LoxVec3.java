@@ -0,0 +1,143 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * Lox's built-in 3D vector, made by Vec3(x, y, z).
+ *
+ * A Vec3 is an immutable value of three unboxed doubles: +, - and * work
+ * on vectors directly, * and / also with a number, and every result is a
+ * new Vec3 instead of an instance with a field map and boxed components.
+ * Two vectors are == when their components are. The components are the
+ * properties x, y and z, and dot, cross, length, lengthSquared and
+ * normalize are methods.
+ */
+final class LoxVec3 implements NativeObject {
+    final double x;
+    final double y;
+    final double z;
+
+    LoxVec3(double x, double y, double z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    double dot(LoxVec3 other) {
+        return x * other.x + y * other.y + z * other.z;
+    }
+
+    LoxVec3 cross(LoxVec3 other) {
+        return new LoxVec3(y * other.z - z * other.y,
+                z * other.x - x * other.z,
+                x * other.y - y * other.x);
+    }
+
+    double lengthSquared() {
+        return x * x + y * y + z * z;
+    }
+
+    /**
+     * left operator right where one operand is a Vec3, or null if neither
+     * is or the other isn't a Vec3 or number the operator takes.
+     */
+    static Object arithmetic(Token operator, Object left, Object right) {
+        if (left instanceof LoxVec3 && right instanceof LoxVec3) {
+            LoxVec3 a = (LoxVec3) left;
+            LoxVec3 b = (LoxVec3) right;
+            switch (operator.type) {
+                case PLUS:  return new LoxVec3(a.x + b.x, a.y + b.y, a.z + b.z);
+                case MINUS: return new LoxVec3(a.x - b.x, a.y - b.y, a.z - b.z);
+                case STAR:  return new LoxVec3(a.x * b.x, a.y * b.y, a.z * b.z);
+                default:    return null;
+            }
+        }
+        if (left instanceof LoxVec3 && Arithmetic.isNumber(right)) {
+            LoxVec3 a = (LoxVec3) left;
+            double n = Arithmetic.toDouble(right);
+            switch (operator.type) {
+                case STAR:
+                    return new LoxVec3(a.x * n, a.y * n, a.z * n);
+                case SLASH:
+                    if (n == 0) { throw new RuntimeError(operator, "Divisor cannot be zero."); }
+                    return new LoxVec3(a.x / n, a.y / n, a.z / n);
+                default:
+                    return null;
+            }
+        }
+        if (Arithmetic.isNumber(left) && right instanceof LoxVec3 && operator.type == TokenType.STAR) {
+            return arithmetic(operator, right, left);
+        }
+        return null;
+    }
+
+    @Override
+    public Object get(Token name) {
+        switch (name.lexeme) {
+            case "x": return x;
+            case "y": return y;
+            case "z": return z;
+            default:  return NativeObject.super.get(name);
+        }
+    }
+
+    @Override
+    public boolean hasMethod(String name) {
+        switch (name) {
+            case "dot": case "cross": case "length": case "lengthSquared": case "normalize":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public Object invoke(Interpreter interpreter, Token name, List<Object> arguments) {
+        switch (name.lexeme) {
+            case "dot":
+                NativeObject.checkArity(name, arguments, 1);
+                return dot(vector(name, arguments.get(0)));
+            case "cross":
+                NativeObject.checkArity(name, arguments, 1);
+                return cross(vector(name, arguments.get(0)));
+            case "length":
+                NativeObject.checkArity(name, arguments, 0);
+                return Math.sqrt(lengthSquared());
+            case "lengthSquared":
+                NativeObject.checkArity(name, arguments, 0);
+                return lengthSquared();
+            case "normalize":
+                NativeObject.checkArity(name, arguments, 0);
+                double length = Math.sqrt(lengthSquared());
+                return new LoxVec3(x / length, y / length, z / length);
+            case "x": case "y": case "z":
+                throw new RuntimeError(name, "Can only call functions and classes.");
+            default:
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+    }
+
+    private static LoxVec3 vector(Token name, Object value) {
+        if (value instanceof LoxVec3) { return (LoxVec3) value; }
+        throw new RuntimeError(name, name.lexeme + " argument must be a Vec3.");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof LoxVec3)) { return false; }
+        LoxVec3 vector = (LoxVec3) other;
+        return Double.compare(x, vector.x) == 0 && Double.compare(y, vector.y) == 0 &&
+                Double.compare(z, vector.z) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(x) * 961 + Double.hashCode(y) * 31 + Double.hashCode(z);
+    }
+
+    @Override
+    public String toString() {
+        return "Vec3(" + NumberFormatter.toString(x) + ", " + NumberFormatter.toString(y) +
+                ", " + NumberFormatter.toString(z) + ")";
+    }
+}
@@ -0,0 +1,90 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * Math natives, so numeric scripts don't have to write sqrt and friends
+ * in Lox. Each one is its own lambda that calls a java.lang.Math method
+ * directly, so when the JIT compiles that lambda the call becomes the
+ * method's intrinsic where HotSpot has one: on x86-64 that is sqrt, sin,
+ * cos, tan, log, log10, exp, pow, fma, abs, min, max and ceil, while cbrt,
+ * hypot and the inverse trig functions stay ordinary calls. The call into
+ * the lambda from NativeFunction.call() is shared by every native and is
+ * not inlined once a script uses several of them.
+ *
+ * abs(), min() and max() of integers are integers, abs() of the least
+ * one wrapping to itself like Math.abs(long); given any double they work
+ * on doubles.
+ *
+ * round() rounds halves up like Math.round but stays a double, and
+ * trunc() rounds toward zero. Vec3() makes a LoxVec3.
+ */
+final class MathModule implements NativeModule {
+    @Override
+    public List<NativeFunction> functions() {
+        return List.of(
+                new NativeFunction("sqrt", 1, (interpreter, arguments) ->
+                        Math.sqrt(number("sqrt", arguments, 0))),
+                new NativeFunction("cbrt", 1, (interpreter, arguments) ->
+                        Math.cbrt(number("cbrt", arguments, 0))),
+                new NativeFunction("pow", 2, (interpreter, arguments) ->
+                        Math.pow(number("pow", arguments, 0), number("pow", arguments, 1))),
+                new NativeFunction("abs", 1, (interpreter, arguments) -> {
+                    Object n = arguments.get(0);
+                    if (n instanceof Long) { return Math.abs((long) n); }
+                    return Math.abs(number("abs", arguments, 0));
+                }),
+                new NativeFunction("min", 2, (interpreter, arguments) -> {
+                    Object a = arguments.get(0);
+                    Object b = arguments.get(1);
+                    if (a instanceof Long && b instanceof Long) { return Math.min((long) a, (long) b); }
+                    return Math.min(number("min", arguments, 0), number("min", arguments, 1));
+                }),
+                new NativeFunction("max", 2, (interpreter, arguments) -> {
+                    Object a = arguments.get(0);
+                    Object b = arguments.get(1);
+                    if (a instanceof Long && b instanceof Long) { return Math.max((long) a, (long) b); }
+                    return Math.max(number("max", arguments, 0), number("max", arguments, 1));
+                }),
+                new NativeFunction("hypot", 2, (interpreter, arguments) ->
+                        Math.hypot(number("hypot", arguments, 0), number("hypot", arguments, 1))),
+                new NativeFunction("sin", 1, (interpreter, arguments) ->
+                        Math.sin(number("sin", arguments, 0))),
+                new NativeFunction("cos", 1, (interpreter, arguments) ->
+                        Math.cos(number("cos", arguments, 0))),
+                new NativeFunction("tan", 1, (interpreter, arguments) ->
+                        Math.tan(number("tan", arguments, 0))),
+                new NativeFunction("asin", 1, (interpreter, arguments) ->
+                        Math.asin(number("asin", arguments, 0))),
+                new NativeFunction("acos", 1, (interpreter, arguments) ->
+                        Math.acos(number("acos", arguments, 0))),
+                new NativeFunction("atan", 1, (interpreter, arguments) ->
+                        Math.atan(number("atan", arguments, 0))),
+                new NativeFunction("atan2", 2, (interpreter, arguments) ->
+                        Math.atan2(number("atan2", arguments, 0), number("atan2", arguments, 1))),
+                new NativeFunction("exp", 1, (interpreter, arguments) ->
+                        Math.exp(number("exp", arguments, 0))),
+                new NativeFunction("log", 1, (interpreter, arguments) ->
+                        Math.log(number("log", arguments, 0))),
+                new NativeFunction("log10", 1, (interpreter, arguments) ->
+                        Math.log10(number("log10", arguments, 0))),
+                new NativeFunction("fma", 3, (interpreter, arguments) -> Math.fma(
+                        number("fma", arguments, 0), number("fma", arguments, 1), number("fma", arguments, 2))),
+                new NativeFunction("ceil", 1, (interpreter, arguments) ->
+                        Math.ceil(number("ceil", arguments, 0))),
+                new NativeFunction("round", 1, (interpreter, arguments) -> {
+                    double n = number("round", arguments, 0);
+                    return Math.abs(n) < 0x1p52 ? (double) Math.round(n) : n;
+                }),
+                new NativeFunction("trunc", 1, (interpreter, arguments) -> {
+                    double n = number("trunc", arguments, 0);
+                    return n < 0 ? Math.ceil(n) : Math.floor(n);
+                }),
+                new NativeFunction("Vec3", 3, (interpreter, arguments) -> new LoxVec3(
+                        number("Vec3", arguments, 0), number("Vec3", arguments, 1), number("Vec3", arguments, 2))));
+    }
+
+    private static double number(String name, List<Object> arguments, int index) {
+        return NativeFunction.number(name, arguments.get(index));
+    }
+}
@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * A function written in Java and defined as a global by a NativeModule.
+ *
+ * Each native is a Body lambda of its own. Math natives call their
+ * java.lang.Math method directly from that lambda rather than through a
+ * shared DoubleUnaryOperator, whose one applyAsDouble call site would be
+ * megamorphic and keep the JIT from reaching the Math method's intrinsic.
+ */
+final class NativeFunction implements LoxCallable {
+    /** The body of a native, given arguments already checked for count. */
+    interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    final String name;
+    private final int arity;
+    private final Body body;
+
+    NativeFunction(String name, int arity, Body body) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+    }
+
+    /** argument as a double, or a runtime error naming the native. */
+    static double number(String name, Object argument) {
+        if (argument instanceof Double) { return (Double) argument; }
+        if (argument instanceof Long) { return (Long) argument; }
+        throw new RuntimeError(name + " argument must be double. got " + argument);
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * A group of native functions that an interpreter defines as globals,
+ * each under its name.
+ */
+interface NativeModule {
+    List<NativeFunction> functions();
+}
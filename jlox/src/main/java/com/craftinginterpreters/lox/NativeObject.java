@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * A value implemented in Java, like an Array, whose properties are
+ * methods looked up by name.
+ *
+ * The interpreter calls obj.method(args) through invoke() directly, so a
+ * call doesn't create a bound method. Getting a method without calling it
+ * binds it as a BoundMethod.
+ */
+interface NativeObject {
+    /** True if name is one of this object's methods. */
+    boolean hasMethod(String name);
+
+    /**
+     * Call the method name with arguments.
+     *
+     * @throws RuntimeError if there is no such method or it can't take
+     *         the arguments
+     */
+    Object invoke(Interpreter interpreter, Token name, List<Object> arguments);
+
+    /** The property name: the method bound to this object. */
+    default Object get(Token name) {
+        if (!hasMethod(name.lexeme)) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        return new BoundMethod(this, name);
+    }
+
+    /** A runtime error unless arguments has count values. */
+    static void checkArity(Token name, List<Object> arguments, int count) {
+        if (arguments.size() != count) {
+            throw new RuntimeError(name, "Expected " + count +
+                    " arguments but got " + arguments.size() + ".");
+        }
+    }
+
+    final class BoundMethod implements LoxCallable {
+        private final NativeObject object;
+        private final Token name;
+
+        BoundMethod(NativeObject object, Token name) {
+            this.object = object;
+            this.name = name;
+        }
+
+        @Override
+        public int arity() {
+            return -1;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return object.invoke(interpreter, name, arguments);
+        }
+
+        @Override
+        public String toString() {
+            return "<native method " + name.lexeme + ">";
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.craftinginterpreters.lox;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats Lox numbers as text.
+ *
+ * Lox prints numbers like Double.toString() with a trailing ".0" removed:
+ * 3, 0.5, 1.0E7, 1.0E-5, -0, NaN, Infinity. This class writes that text
+ * straight into a byte array without building intermediate Strings.
+ *
+ * Integers below 10^7 take a fast path that just writes their digits.
+ * Everything else uses Raffaello Giulietti's Schubfach algorithm to find
+ * the shortest decimal that rounds back to the same double.
+ *
+ * See "The Schubfach way to render doubles",
+ * https://drive.google.com/file/d/1gp5xv4CAa78SVgCeWfGqqI4FfYYYuNFb
+ */
+final class NumberFormatter {
+    /** longest output, like -1.2345678901234567E-308 */
+    static final int MAX_LENGTH = 24;
+
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final int BQ_MASK = 0x7ff;
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+    private static final long C_TINY = 3;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    private static final byte[] NAN = "NaN".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] INFINITY = "Infinity".getBytes(StandardCharsets.ISO_8859_1);
+
+    private NumberFormatter() {}
+
+    static String toString(double v) {
+        byte[] buf = new byte[MAX_LENGTH];
+        int length = format(v, buf, 0);
+        return new String(buf, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Write the Lox text for v into buf at pos, which needs room for
+     * MAX_LENGTH bytes.
+     * @return position after the last byte written
+     */
+    static int format(double v, byte[] buf, int pos) {
+        long l = (long) v;
+        if (l == v && l < 10_000_000 && l > -10_000_000 && (l != 0 || v != 0 || 1 / v > 0)) {
+            return formatLong(l, buf, pos);
+        }
+
+        long bits = Double.doubleToRawLongBits(v);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        if (bq == BQ_MASK) {
+            if (t != 0) { return copy(NAN, buf, pos); }
+            if (bits < 0) { buf[pos++] = '-'; }
+            return copy(INFINITY, buf, pos);
+        }
+
+        if (bits < 0) { buf[pos++] = '-'; }
+        if (bq != 0) {
+            // normal value
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            if (0 < mq && mq < P) {
+                // integer below 2^53
+                long f = c >> mq;
+                if (f << mq == c) { return toChars(f, 0, buf, pos); }
+            }
+            return toDecimal(-mq, c, 0, buf, pos);
+        }
+        if (t != 0) {
+            // subnormal value
+            return t < C_TINY
+                    ? toDecimal(Q_MIN, 10 * t, -1, buf, pos)
+                    : toDecimal(Q_MIN, t, 0, buf, pos);
+        }
+        // -0.0, +0.0 took the integer path
+        buf[pos++] = '0';
+        return pos;
+    }
+
+    /** Write the digits of n, which is not Long.MIN_VALUE. */
+    static int formatLong(long n, byte[] buf, int pos) {
+        if (n < 0) {
+            buf[pos++] = '-';
+            n = -n;
+        }
+        int end = pos + digitCount(n);
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Find the shortest decimal in the rounding interval of c 2^q and write
+     * it. This is figure 7 of the paper, computed as in figure 9.
+     */
+    private static int toDecimal(int q, long c, int dk, byte[] buf, int pos) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // the interval is asymmetric at powers of 2
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = Powers.g1(k);
+        long g0 = Powers.g0(k);
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // try one digit less first: sp10 = 10 floor(s / 10)
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return toChars(upin ? sp10 : tp10, k, buf, pos);
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            return toChars(uin ? s : t, k + dk, buf, pos);
+        }
+        // both are in the interval, pick the closer one, or the even one
+        long cmp = vb - (s + t << 1);
+        return toChars(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk, buf, pos);
+    }
+
+    /** Round to odd of g cp 2^-127, see section 9.9 of the paper. */
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * Lay out f 10^e like Double.toString() does. Plain notation for values
+     * in [10^-3, 10^7), computerized scientific notation otherwise, and no
+     * fraction at all for integers.
+     */
+    private static int toChars(long f, int e, byte[] buf, int pos) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int n = digitCount(f);
+        // the value is 0.d1d2..dn 10^exp
+        int exp = e + n;
+
+        // write the digits where they end up in the plain layouts
+        if (0 < exp && exp <= 7) {
+            if (n <= exp) {
+                // integer, trailing ".0" dropped
+                formatLong(f, buf, pos);
+                pos += n;
+                for (int i = n; i < exp; i++) { buf[pos++] = '0'; }
+                return pos;
+            }
+            formatLong(f, buf, pos + 1);
+            // shift the integer digits left over the gap and put the point in
+            System.arraycopy(buf, pos + 1, buf, pos, exp);
+            buf[pos + exp] = '.';
+            return pos + n + 1;
+        }
+        if (-3 < exp && exp <= 0) {
+            buf[pos++] = '0';
+            buf[pos++] = '.';
+            for (int i = exp; i < 0; i++) { buf[pos++] = '0'; }
+            return formatLong(f, buf, pos);
+        }
+
+        formatLong(f, buf, pos + 1);
+        buf[pos] = buf[pos + 1];
+        buf[pos + 1] = '.';
+        if (n == 1) {
+            buf[pos + 2] = '0';
+            pos += 3;
+        } else {
+            pos += n + 1;
+        }
+        buf[pos++] = 'E';
+        return formatLong(exp - 1, buf, pos);
+    }
+
+    private static int digitCount(long n) {
+        int digits = 1;
+        while (n >= 10) {
+            n /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int copy(byte[] text, byte[] buf, int pos) {
+        System.arraycopy(text, 0, buf, pos, text.length);
+        return pos + text.length;
+    }
+
+    /** floor(e log10(2)) */
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    /** floor(log10(3/4 2^e)) */
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    /** floor(e log2(10)) */
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    /**
+     * Table of 126 bit approximations of powers of ten. For each k,
+     * g = floor(10^-k 2^-r) + 1 with r chosen so that 2^125 <= g < 2^126,
+     * split into its high 63 bits g1 and low 63 bits g0.
+     *
+     * Built on first use so programs that only print integers never pay
+     * for it.
+     */
+    private static final class Powers {
+        private static final int K_MIN = -324;
+        private static final int K_MAX = 292;
+        private static final long[] g = new long[2 * (K_MAX - K_MIN + 1)];
+
+        static {
+            BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+            for (int k = K_MIN; k <= K_MAX; k++) {
+                // 10^-k is in [2^e, 2^(e+1))
+                int e = flog2pow10(-k);
+                BigInteger value;
+                if (k <= 0) {
+                    value = shift(BigInteger.TEN.pow(-k), 125 - e);
+                } else {
+                    value = BigInteger.ONE.shiftLeft(125 - e).divide(BigInteger.TEN.pow(k));
+                }
+                value = value.add(BigInteger.ONE);
+                int index = 2 * (k - K_MIN);
+                g[index] = value.shiftRight(63).longValue();
+                g[index + 1] = value.and(mask63).longValue();
+            }
+        }
+
+        private static BigInteger shift(BigInteger value, int n) {
+            return n >= 0 ? value.shiftLeft(n) : value.shiftRight(-n);
+        }
+
+        static long g1(int k) {
+            return g[2 * (k - K_MIN)];
+        }
+
+        static long g0(int k) {
+            return g[2 * (k - K_MIN) + 1];
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Buffered output channel for print statements.
+ *
+ * Text is encoded as UTF-8 straight into a byte array and handed to a
+ * channel in large writes. With an async buffer the writes happen on a
+ * background thread while the interpreter fills a second array.
+ *
+ * Anything that writes to stderr must call {@link #flush()} first so
+ * errors show up after the output that came before them.
+ */
+final class OutputBuffer {
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    enum FlushPolicy {
+        /** hold all output until flush() is called */
+        EXIT,
+        /** write whenever the buffer is full */
+        SIZE,
+        /** write after every line, for interactive use */
+        NEWLINE
+    }
+
+    private static final byte[] LINE_SEPARATOR =
+            System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final WritableByteChannel channel;
+    private final FlushPolicy policy;
+    private final ExecutorService writer;
+
+    private byte[] buf;
+    private int count = 0;
+    /** array being written by the background thread */
+    private byte[] inFlight;
+    private Future<?> pending;
+    /** whether bytes have gone to the channel since the last flush() */
+    private boolean written = false;
+
+    OutputBuffer(WritableByteChannel channel, FlushPolicy policy, int capacity, boolean async) {
+        this.channel = channel;
+        this.policy = policy;
+        this.buf = new byte[capacity];
+        this.writer = async ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lox-output");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /** Buffer writing to the process's stdout through a FileChannel. */
+    static OutputBuffer stdout(FlushPolicy policy, boolean async) {
+        FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+        return new OutputBuffer(out.getChannel(), policy, DEFAULT_CAPACITY, async);
+    }
+
+    /**
+     * Buffer writing to whatever System.out is when it is flushed, so
+     * callers that redirect System.out see the output.
+     */
+    static OutputBuffer systemOut(FlushPolicy policy) {
+        return new OutputBuffer(new SystemOutChannel(), policy, DEFAULT_CAPACITY, false);
+    }
+
+    void print(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        // ASCII fast path
+        int i = 0;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) { break; }
+            buf[count++] = (byte) c;
+        }
+        if (i < length) { encode(s, i); }
+    }
+
+    /** Write a number the way Lox prints it, without going through a String. */
+    void print(double n) {
+        ensureCapacity(NumberFormatter.MAX_LENGTH);
+        count = NumberFormatter.format(n, buf, count);
+    }
+
+    void println() {
+        ensureCapacity(LINE_SEPARATOR.length);
+        for (byte b : LINE_SEPARATOR) {
+            buf[count++] = b;
+        }
+        if (policy == FlushPolicy.NEWLINE) { flush(); }
+    }
+
+    /**
+     * Write everything buffered so far and wait for it to finish. Does
+     * nothing if nothing was printed since the last flush, so hosts can
+     * call it after every call into Lox.
+     */
+    void flush() {
+        if (count == 0 && !written) { return; }
+        written = false;
+        writeOut();
+        awaitWriter();
+        if (channel instanceof SystemOutChannel) { System.out.flush(); }
+    }
+
+    void close() {
+        flush();
+        if (writer != null) { writer.shutdown(); }
+    }
+
+    /** UTF-8 encode s from index i onwards, the slow path of print(). */
+    private void encode(String s, int i) {
+        int length = s.length();
+        while (i < length) {
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+            ensureCapacity(4);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c < 0x10000) {
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                buf[count++] = (byte) (0xf0 | (c >> 18));
+                buf[count++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /** Make room for n more bytes, writing out or growing the buffer. */
+    private void ensureCapacity(int n) {
+        if (count + n <= buf.length) { return; }
+        if (policy != FlushPolicy.EXIT) {
+            writeOut();
+            if (n <= buf.length) { return; }
+        }
+        byte[] grown = new byte[Math.max(buf.length * 2, count + n)];
+        System.arraycopy(buf, 0, grown, 0, count);
+        buf = grown;
+    }
+
+    /** Hand the buffered bytes to the channel, on the writer thread if async. */
+    private void writeOut() {
+        if (count == 0) { return; }
+        written = true;
+        if (writer == null) {
+            write(buf, count);
+            count = 0;
+            return;
+        }
+        awaitWriter();
+        byte[] full = buf;
+        int length = count;
+        buf = inFlight != null && inFlight.length == full.length ? inFlight : new byte[full.length];
+        count = 0;
+        inFlight = full;
+        pending = writer.submit(() -> write(full, length));
+    }
+
+    private void awaitWriter() {
+        if (pending == null) { return; }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    private void write(byte[] bytes, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Channel over the current System.out. */
+    private static class SystemOutChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            System.out.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() {}
+    }
+}
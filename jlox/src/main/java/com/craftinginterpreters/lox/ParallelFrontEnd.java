@@ -0,0 +1,159 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+/**
+ * Parses and resolves a script on several cores.
+ *
+ * The tokens are split into chunks at top-level declarations: a class,
+ * struct, fun or var keyword outside any brackets, right after a ';' or '}'. Each
+ * chunk is parsed by its own Parser on the common fork-join pool. Then
+ * runs of top-level statements are resolved by their own Resolver. The
+ * Resolver keeps no state from one top-level statement to the next, so
+ * this finds the same errors as resolving them in order. Only the struct
+ * field slots it hints at gets and sets carry over, and a run that misses
+ * a struct from another run just leaves the lookup to the interpreter.
+ *
+ * Errors are collected per chunk and reported in chunk order, which is the
+ * order the sequential front end reports them in. Errors found later, when
+ * a lazy function body is parsed, go straight to the reporter. After a syntax error
+ * the parser can recover past a chunk boundary, so if any chunk fails to
+ * parse the script is parsed again sequentially to get exactly its errors.
+ */
+final class ParallelFrontEnd {
+    /** about how many tokens go in one parse chunk */
+    private static final int CHUNK_TOKENS = 4096;
+    /** how many top-level statements go in one resolve chunk */
+    private static final int CHUNK_STATEMENTS = 64;
+
+    private ParallelFrontEnd() {}
+
+    static List<Stmt> parse(TokenBuffer tokens, ErrorReporter reporter, boolean lazy) {
+        List<Integer> bounds = split(tokens);
+        if (bounds.size() <= 2) { return new Parser(tokens, reporter, lazy).parse(); }
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            int start = bounds.get(i);
+            int end = bounds.get(i + 1);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                Chunk chunk = new Chunk(reporter);
+                Parser parser = new Parser(tokens, start, end, chunk, lazy);
+                chunk.statements = parser.parse();
+                chunk.complete = parser.position() == end;
+                return chunk;
+            }));
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk chunk = task.join();
+            if (!chunk.complete || chunk.hasErrors()) {
+                // let the sequential parser find and report the errors
+                return new Parser(tokens, reporter, lazy).parse();
+            }
+            chunk.report();
+            statements.addAll(chunk.statements);
+        }
+        return statements;
+    }
+
+    static void resolve(List<Stmt> statements, ErrorReporter reporter) {
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        for (int start = 0; start < statements.size(); start += CHUNK_STATEMENTS) {
+            List<Stmt> part = statements.subList(start,
+                    Math.min(start + CHUNK_STATEMENTS, statements.size()));
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                Chunk chunk = new Chunk(reporter);
+                new Resolver(chunk).resolve(part);
+                return chunk;
+            }));
+        }
+
+        for (ForkJoinTask<Chunk> task : tasks) {
+            task.join().report();
+        }
+    }
+
+    /**
+     * Token indexes where chunks start, ending with the index of EOF.
+     * Chunks are at least CHUNK_TOKENS long, except the last.
+     */
+    private static List<Integer> split(TokenBuffer tokens) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        int eof = tokens.size() - 1;
+        int depth = 0;
+        TokenType previous = null;
+        for (int i = 0; i < eof; i++) {
+            TokenType type = tokens.type(i);
+            if (depth == 0 && (type == CLASS || type == STRUCT || type == FUN || type == VAR) &&
+                    (previous == SEMICOLON || previous == RIGHT_BRACE) &&
+                    i - bounds.get(bounds.size() - 1) >= CHUNK_TOKENS) {
+                bounds.add(i);
+            }
+
+            switch (type) {
+                case LEFT_PAREN:
+                case LEFT_BRACE:
+                    depth++;
+                    break;
+                case RIGHT_PAREN:
+                case RIGHT_BRACE:
+                    depth--;
+                    break;
+            }
+            previous = type;
+        }
+        bounds.add(eof);
+        return bounds;
+    }
+
+    /** The statements parsed from one chunk and the errors found in it. */
+    private static final class Chunk implements ErrorReporter {
+        List<Stmt> statements;
+        /** true if the parser stopped exactly at the end of the chunk */
+        boolean complete;
+        private final ErrorReporter reporter;
+        private final List<Token> tokens = new ArrayList<>();
+        private final List<String> messages = new ArrayList<>();
+        /** set once the errors are replayed, after which they go straight through */
+        private boolean reported = false;
+
+        Chunk(ErrorReporter reporter) {
+            this.reporter = reporter;
+        }
+
+        @Override
+        public void error(int line, String message) {
+            // only the Scanner reports by line, and it doesn't run in chunks
+            reporter.error(line, message);
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            if (reported) {
+                reporter.error(token, message);
+                return;
+            }
+            tokens.add(token);
+            messages.add(message);
+        }
+
+        boolean hasErrors() {
+            return !messages.isEmpty();
+        }
+
+        void report() {
+            for (int i = 0; i < messages.size(); i++) {
+                reporter.error(tokens.get(i), messages.get(i));
+            }
+            reported = true;
+        }
+    }
+}
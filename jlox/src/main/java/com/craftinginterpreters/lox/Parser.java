@@ -8,21 +8,36 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 /**
  * Grammar Rules are described in table.
- * Each rule is a method in this class. Eac rule must match expressions
- * at that precedence level or higher.
+ * Each statement rule is a method in this class. Expressions are parsed by
+ * precedence climbing over a table of ParseRules, one per token type, as
+ * clox does: a token's prefix rule parses an expression that starts with
+ * it, its infix rule one it continues, and its precedence says how tightly
+ * that infix operator binds.
  * <p><br>
  * <br>Rules Table:
  * <pre>{@code
- * expression  → equality ;
+ * expression  → assignment ;
+ * assignment  → ( call "." )? IDENTIFIER "=" assignment
+ *             | logic_or ;
+ * logic_or    → logic_and ( "or" logic_and )* ;
+ * logic_and   → equality ( "and" equality )* ;
  * equality    → comparison ( ( "!=" | "==" ) comparison)* ;
- * comparison  → term ( ( "<" | ">" | "<=" | ">=" ) term)* ;
- * term        → factor ( ( "+"  | "-"  | "*" | "/" ) factor)* ;
- * factor      → unary ( ( "/" | "*") unary)* ;
+ * comparison  → bit_or ( ( "<" | ">" | "<=" | ">=" ) bit_or)* ;
+ * bit_or      → bit_xor ( "|" bit_xor )* ;
+ * bit_xor     → bit_and ( "^" bit_and )* ;
+ * bit_and     → shift ( "&" shift )* ;
+ * shift       → term ( ( "<<" | ">>" ) term )* ;
+ * term        → factor ( ( "-" | "+" ) factor)* ;
+ * factor      → unary ( ( "/" | "*" | "~/" | "%" ) unary)* ;
  * unary       → ( "!" | "-") unary
- *             | primary
- * primary     → NUMBER | STRING | "true" | "false" | "nil"
+ *             | call
+ * call        → primary ( "(" arguments? ")" | "." IDENTIFIER )* ;
+ * primary     → NUMBER | STRING | "true" | "false" | "nil" | "this"
+ *             | IDENTIFIER | "super" "." IDENTIFIER
  *             | "(" expression ")" ;
  * }</pre>
+ * The bitwise operators bind tighter than the comparisons, as in Python
+ * and unlike C, so {@code x & 1 == 1} means {@code (x & 1) == 1}.
  *
  * <p><br>
  * <table border="1">
@@ -35,12 +50,134 @@ import static com.craftinginterpreters.lox.TokenType.*;
  * </table>
  */
 public class Parser {
-    private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
-    private int current = 0;
+    static class ParseError extends RuntimeException {}
+
+    /** How tightly operators bind, loosest first. */
+    private enum Precedence {
+        NONE,
+        ASSIGNMENT, // =
+        OR,         // or
+        AND,        // and
+        EQUALITY,   // == !=
+        COMPARISON, // < > <= >=
+        BIT_OR,     // |
+        BIT_XOR,    // ^
+        BIT_AND,    // &
+        SHIFT,      // << >>
+        TERM,       // + -
+        FACTOR,     // * / ~/ %
+        UNARY,      // ! -
+        CALL,       // . ()
+        PRIMARY;
+
+        private static final Precedence[] VALUES = values();
+
+        Precedence next() {
+            return VALUES[ordinal() + 1];
+        }
+    }
+
+    /** Parses an expression that starts with the token just consumed. */
+    private interface Prefix {
+        Expr parse(Parser parser);
+    }
+
+    /** Parses the rest of an expression whose operator was just consumed. */
+    private interface Infix {
+        Expr parse(Parser parser, Expr left);
+    }
 
-    Parser(List<Token> tokens) {
+    /** How to parse expressions that start with or continue at a token type. */
+    private static final class ParseRule {
+        final Prefix prefix;
+        final Infix infix;
+        final Precedence precedence;
+
+        ParseRule(Prefix prefix, Infix infix, Precedence precedence) {
+            this.prefix = prefix;
+            this.infix = infix;
+            this.precedence = precedence;
+        }
+    }
+
+    /** ParseRules indexed by TokenType ordinal, like the rules table in clox. */
+    private static final ParseRule[] RULES = new ParseRule[TokenType.values().length];
+
+    static {
+        Arrays.fill(RULES, new ParseRule(null, null, Precedence.NONE));
+        rule(LEFT_PAREN,    Parser::grouping,  Parser::finishCall, Precedence.CALL);
+        rule(DOT,           null,              Parser::get,        Precedence.CALL);
+        rule(MINUS,         Parser::unary,     Parser::binary,     Precedence.TERM);
+        rule(PLUS,          null,              Parser::binary,     Precedence.TERM);
+        rule(SLASH,         null,              Parser::binary,     Precedence.FACTOR);
+        rule(STAR,          null,              Parser::binary,     Precedence.FACTOR);
+        rule(TILDE_SLASH,   null,              Parser::binary,     Precedence.FACTOR);
+        rule(PERCENT,       null,              Parser::binary,     Precedence.FACTOR);
+        rule(PIPE,          null,              Parser::binary,     Precedence.BIT_OR);
+        rule(CARET,         null,              Parser::binary,     Precedence.BIT_XOR);
+        rule(AMPERSAND,     null,              Parser::binary,     Precedence.BIT_AND);
+        rule(LESS_LESS,     null,              Parser::binary,     Precedence.SHIFT);
+        rule(GREATER_GREATER, null,            Parser::binary,     Precedence.SHIFT);
+        rule(BANG,          Parser::unary,     null,               Precedence.NONE);
+        rule(BANG_EQUAL,    null,              Parser::binary,     Precedence.EQUALITY);
+        rule(EQUAL_EQUAL,   null,              Parser::binary,     Precedence.EQUALITY);
+        rule(GREATER,       null,              Parser::binary,     Precedence.COMPARISON);
+        rule(GREATER_EQUAL, null,              Parser::binary,     Precedence.COMPARISON);
+        rule(LESS,          null,              Parser::binary,     Precedence.COMPARISON);
+        rule(LESS_EQUAL,    null,              Parser::binary,     Precedence.COMPARISON);
+        rule(IDENTIFIER,    Parser::variable,  null,               Precedence.NONE);
+        rule(STRING,        Parser::literal,   null,               Precedence.NONE);
+        rule(NUMBER,        Parser::literal,   null,               Precedence.NONE);
+        rule(AND,           null,              Parser::logical,    Precedence.AND);
+        rule(FALSE,         Parser::literal,   null,               Precedence.NONE);
+        rule(NIL,           Parser::literal,   null,               Precedence.NONE);
+        rule(OR,            null,              Parser::logical,    Precedence.OR);
+        rule(SUPER,         Parser::superExpr, null,               Precedence.NONE);
+        rule(THIS,          Parser::thisExpr,  null,               Precedence.NONE);
+        rule(TRUE,          Parser::literal,   null,               Precedence.NONE);
+    }
+
+    private static void rule(TokenType type, Prefix prefix, Infix infix, Precedence precedence) {
+        RULES[type.ordinal()] = new ParseRule(prefix, infix, precedence);
+    }
+
+    private final TokenBuffer tokens;
+    private final ErrorReporter reporter;
+    /** parse tokens before end only */
+    private final int end;
+    /** leave function bodies to be parsed when they are first run */
+    private final boolean lazy;
+    private int current;
+
+    /** where we are, for the PreParser */
+    private boolean inClass = false;
+    private boolean inSubclass = false;
+    private boolean inLoop = false;
+
+    Parser(TokenBuffer tokens) {
+        this(tokens, false);
+    }
+
+    Parser(TokenBuffer tokens, boolean lazy) {
+        this(tokens, Lox.REPORTER, lazy);
+    }
+
+    Parser(TokenBuffer tokens, ErrorReporter reporter, boolean lazy) {
+        this(tokens, 0, Integer.MAX_VALUE, reporter, lazy);
+    }
+
+    /** Parse the declarations in tokens [start, end). */
+    Parser(TokenBuffer tokens, int start, int end, ErrorReporter reporter, boolean lazy) {
         this.tokens = tokens;
+        this.current = start;
+        this.end = end;
+        this.reporter = reporter;
+        this.lazy = lazy;
+    }
+
+    /** Index of the next token to parse. */
+    int position() {
+        return current;
     }
 
     List<Stmt> parse() {
@@ -52,11 +189,35 @@ public class Parser {
         return statements;
     }
 
+    /**
+     * Parse the next declaration, or return null at the end of the source.
+     * Declarations with syntax errors are reported and skipped. Tokens
+     * before the declaration are discarded, so a streamed source can be
+     * parsed in memory proportional to its longest declaration.
+     */
+    Stmt next() {
+        while (!isAtEnd()) {
+            tokens.discardBefore(current);
+            Stmt statement = declaration();
+            if (statement != null) { return statement; }
+        }
+        return null;
+    }
+
+    /** Parse the body of a function that was left to a LazyBody. */
+    List<Stmt> functionBody(boolean inClass, boolean inSubclass, boolean inLoop) {
+        this.inClass = inClass;
+        this.inSubclass = inSubclass;
+        this.inLoop = inLoop;
+        return block();
+    }
+
     private Stmt declaration() {
         try {
-            if (match(CLASS)) { return classDeclaration(); }
-            if (match(FUN))   { return function("function"); }
-            if (match(VAR))   { return varDeclaration(); }
+            if (match(CLASS))  { return classDeclaration(); }
+            if (match(STRUCT)) { return structDeclaration(); }
+            if (match(FUN))    { return function("function"); }
+            if (match(VAR))    { return varDeclaration(); }
            return statement();
         } catch (ParseError error) {
             synchronize();
@@ -65,7 +226,8 @@ public class Parser {
     }
 
     private Stmt classDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect class name.");
+        consume(IDENTIFIER, "Expect class name.");
+        Token name = previous();
 
         Expr.Variable superclass = null;
         if (match(LESS)) {
@@ -74,8 +236,17 @@ public class Parser {
         }
         consume(LEFT_BRACE, "Expect '{' before class body.");
         List<Stmt.Function> methods = new ArrayList<>();
-        while(!check(RIGHT_BRACE) && !isAtEnd()) {
-            methods.add(function("method"));
+        boolean enclosingClass = inClass;
+        boolean enclosingSubclass = inSubclass;
+        inClass = true;
+        inSubclass = superclass != null;
+        try {
+            while(!check(RIGHT_BRACE) && !isAtEnd()) {
+                methods.add(function("method"));
+            }
+        } finally {
+            inClass = enclosingClass;
+            inSubclass = enclosingSubclass;
         }
 
         consume(RIGHT_BRACE, "Expect '}' after class body.");
@@ -83,8 +254,28 @@ public class Parser {
         return new Stmt.Class(name, superclass, methods);
     }
 
+    private Stmt structDeclaration() {
+        consume(IDENTIFIER, "Expect struct name.");
+        Token name = previous();
+        consume(LEFT_BRACE, "Expect '{' before struct fields.");
+        List<Token> fields = new ArrayList<>();
+        if (!check(RIGHT_BRACE)) {
+            do {
+                if (fields.size() >= 255) {
+                    error(peek(), "Can't have more than 255 fields.");
+                }
+                consume(IDENTIFIER, "Expect field name.");
+                fields.add(previous());
+            } while (match(COMMA));
+        }
+        consume(RIGHT_BRACE, "Expect '}' after struct fields.");
+
+        return new Stmt.Struct(name, fields);
+    }
+
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+        consume(IDENTIFIER, "Expect " + kind + " name.");
+        Token name = previous();
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)) {
@@ -92,22 +283,38 @@ public class Parser {
                 if (parameters.size() >= 255) {
                     error(peek(), "Can't have more than 255 parameters.");
                 }
-                parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+                consume(IDENTIFIER, "Expect parameter name.");
+                parameters.add(previous());
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        List<Stmt> body = lazy ? lazyBody(kind, name, parameters) : block();
         return new Stmt.Function(name, parameters, body);
     }
 
+    /** Check a function body and leave it to be parsed when it is run. */
+    private List<Stmt> lazyBody(String kind, Token name, List<Token> parameters) {
+        int start = current;
+        boolean isInitializer = kind.equals("method") && name.lexeme.equals("init");
+        PreParser preParser = new PreParser(tokens, start, end, reporter, parameters,
+                isInitializer, inClass, inSubclass, inLoop);
+        try {
+            preParser.functionBody();
+        } finally {
+            current = preParser.position();
+        }
+        return new LazyBody(tokens, start, reporter, inClass, inSubclass, inLoop,
+                preParser.errorTokens(), preParser.errorMessages());
+    }
+
     private Expr expression() {
         return assignment();
     }
 
     private Expr assignment() {
-        Expr expr = or();
+        Expr expr = parsePrecedence(Precedence.OR);
 
         if (match(EQUAL)) {
             Token equals = previous();
@@ -127,30 +334,6 @@ public class Parser {
         return expr;
     }
 
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
     private Stmt statement() {
         if (match(FOR)) {        return forStatement(); }
         if (match(IF)) {         return ifStatement(); }
@@ -202,7 +385,7 @@ public class Parser {
             increment = expression();
         }
         consume(RIGHT_PAREN, "Expect ')' after for clauses.");
-        Stmt body = statement();
+        Stmt body = loopBody();
 
         // exec increment after body in each iteration
         if (increment != null) {
@@ -226,11 +409,21 @@ public class Parser {
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after while condition.");
-        Stmt body = statement();
+        Stmt body = loopBody();
 
         return new Stmt.While(condition, body);
     }
 
+    private Stmt loopBody() {
+        boolean enclosingLoop = inLoop;
+        inLoop = true;
+        try {
+            return statement();
+        } finally {
+            inLoop = enclosingLoop;
+        }
+    }
+
     private Stmt ifStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
@@ -263,7 +456,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initalizer = null;
         if (match(EQUAL)) {
@@ -280,76 +474,80 @@ public class Parser {
         return new Stmt.Expression(expr);
     }
 
-    private Expr equality() {
-        Expr expr = comparison();
+    /**
+     * Parse an expression whose operators all bind at least as tightly as
+     * precedence. The current token's prefix rule parses the left operand,
+     * then infix rules extend it while their operator binds tightly
+     * enough.
+     */
+    private Expr parsePrecedence(Precedence precedence) {
+        Prefix prefix = RULES[tokens.type(current).ordinal()].prefix;
+        if (prefix == null) { throw error(peek(), "Expect expression."); }
+        advance();
+        Expr expr = prefix.parse(this);
 
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+        for (;;) {
+            ParseRule rule = RULES[tokens.type(current).ordinal()];
+            if (rule.precedence.compareTo(precedence) < 0) { return expr; }
+            advance();
+            expr = rule.infix.parse(this, expr);
         }
-        return expr;
     }
 
-
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr literal() {
+        switch (tokens.type(current - 1)) {
+            case FALSE: return new Expr.Literal(false);
+            case TRUE:  return new Expr.Literal(true);
+            case NIL:   return new Expr.Literal(null);
+            default:    return new Expr.Literal(tokens.literal(current - 1));
         }
-        return expr;
     }
 
-    private Expr term() {
-        Expr expr = factor();
+    private Expr variable() {
+        return new Expr.Variable(previous());
+    }
 
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    private Expr thisExpr() {
+        return new Expr.This(previous());
     }
 
-    private Expr factor() {
-        Expr expr = unary();
+    private Expr superExpr() {
+        Token keyword = previous();
+        consume(DOT, "Expect '.' after 'super'.");
+        consume(IDENTIFIER, "Expect superclass method name.");
+        Token method = previous();
+        return new Expr.Super(keyword, method);
+    }
 
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    private Expr grouping() {
+        Expr expr = expression();
+        consume(RIGHT_PAREN, "Expect ')' after expression.");
+        return new Expr.Grouping(expr);
     }
 
     private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-        return call();
+        Token operator = previous();
+        Expr right = parsePrecedence(Precedence.UNARY);
+        return new Expr.Unary(operator, right);
     }
 
-    private Expr call() {
-        Expr expr = primary();
+    /** Left associative, so the right operand binds one level tighter. */
+    private Expr binary(Expr left) {
+        Token operator = previous();
+        Expr right = parsePrecedence(RULES[operator.type.ordinal()].precedence.next());
+        return new Expr.Binary(left, operator, right);
+    }
 
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER,
-                        "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
-        }
+    private Expr logical(Expr left) {
+        Token operator = previous();
+        Expr right = parsePrecedence(RULES[operator.type.ordinal()].precedence.next());
+        return new Expr.Logical(left, operator, right);
+    }
 
-        return expr;
+    private Expr get(Expr object) {
+        consume(IDENTIFIER, "Expect property name after '.'.");
+        Token name = previous();
+        return new Expr.Get(object, name);
     }
 
     private Expr finishCall(Expr callee) {
@@ -363,61 +561,29 @@ public class Parser {
             } while (match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = previous();
         return new Expr.Call(callee, paren, arguments);
     }
 
-    private Expr primary() {
-        if (match(FALSE)) { return new Expr.Literal(false); }
-        if (match(TRUE)) { return new Expr.Literal(true); }
-        if (match(NIL)) { return new Expr.Literal(null); }
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(SUPER)) {
-            Token keyword = previous();
-            consume(DOT, "Expect '.' after 'super'.");
-            Token method = consume(IDENTIFIER,
-                    "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
-        }
-
-        if (match(THIS)) {
-            return new Expr.This(previous());
-        }
-
-        if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
-        }
-
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
-        throw error(peek(), "Expect expression.");
-    }
-
-    private boolean match(TokenType ... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
         return false;
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) { return advance(); };
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(), message);
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -425,10 +591,11 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) { return; }
+            if (tokens.type(current - 1) == SEMICOLON) { return; }
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
+                case STRUCT:
                 case FUN:
                 case VAR:
                 case FOR:
@@ -443,26 +610,28 @@ public class Parser {
 
     }
 
-    private Token advance() {
-        if (!isAtEnd()) { current++; }
-        return previous();
+    private void advance() {
+        // a declaration that runs past end still gets its tokens
+        if (tokens.type(current) != EOF) { current++; }
     }
 
+    /** End of the source, or of the range being parsed. */
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return current >= end || tokens.type(current) == EOF;
     }
 
+    /** Build the current token, for error messages. */
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
+    /** Build the token that was just consumed, for the AST. */
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     /** Return true if the current token is of given type. */
     private boolean check(TokenType type) {
-        if (isAtEnd()) { return false; }
-        return peek().type == type;
+        return tokens.type(current) == type && type != EOF;
     }
 }
\ No newline at end of file
@@ -0,0 +1,635 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+/**
+ * Checks a function body without building its AST.
+ *
+ * The PreParser follows the same grammar as the Parser and reports the same
+ * syntax errors at the same tokens, recovering from them the same way, so
+ * it stops on the same token the Parser would. It also does the checks the
+ * Resolver would do on the body: 'this', 'super', 'break' and 'return' in
+ * the wrong place, variables declared twice in a scope or read in their
+ * own initializer. Those errors are only reported if the script parses, so
+ * they are kept, in the order the Resolver would find them, for the
+ * Resolver to report when it reaches the function.
+ *
+ * The body is then parsed for real by a LazyBody when it is first run.
+ */
+class PreParser {
+    /** what an expression is, which decides if it can be assigned to */
+    private static final int OTHER = 0;
+    private static final int VARIABLE = 1;
+    private static final int GET = 2;
+
+    private final TokenBuffer tokens;
+    private final ErrorReporter reporter;
+    private final int end;
+    private int current;
+
+    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private boolean inInitializer;
+    private boolean inClass;
+    private boolean inSubclass;
+    private boolean inLoop;
+
+    /** Resolver errors, as token indexes and messages */
+    private final List<Integer> errorTokens = new ArrayList<>();
+    private final List<String> errorMessages = new ArrayList<>();
+
+    /**
+     * Check the body that starts at token start, right after its '{'.
+     * params are the function's parameters, the rest describes where the
+     * function is.
+     */
+    PreParser(TokenBuffer tokens, int start, int end, ErrorReporter reporter,
+              List<Token> params, boolean isInitializer,
+              boolean inClass, boolean inSubclass, boolean inLoop) {
+        this.tokens = tokens;
+        this.current = start;
+        this.end = end;
+        this.reporter = reporter;
+        this.inInitializer = isInitializer;
+        this.inClass = inClass;
+        this.inSubclass = inSubclass;
+        this.inLoop = inLoop;
+
+        beginScope();
+        for (Token param : params) { define(param.lexeme); }
+    }
+
+    /**
+     * Check the body through its closing '}'. Throws a Parser.ParseError
+     * where Parser.block() would.
+     */
+    void functionBody() {
+        block();
+    }
+
+    /** Index of the next token to check. */
+    int position() {
+        return current;
+    }
+
+    int[] errorTokens() {
+        return errorTokens.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    String[] errorMessages() {
+        return errorMessages.toArray(new String[0]);
+    }
+
+    private void declaration() {
+        try {
+            if (match(CLASS)) {
+                classDeclaration();
+            } else if (match(STRUCT)) {
+                structDeclaration();
+            } else if (match(FUN)) {
+                function("function", false);
+            } else if (match(VAR)) {
+                varDeclaration();
+            } else {
+                statement();
+            }
+        } catch (Parser.ParseError error) {
+            synchronize();
+        }
+    }
+
+    private void classDeclaration() {
+        consume(IDENTIFIER, "Expect class name.");
+        int name = current - 1;
+        declare(name);
+        define(tokens.lexeme(name));
+
+        boolean hasSuperclass = false;
+        if (match(LESS)) {
+            consume(IDENTIFIER, "Expect superclass name.");
+            hasSuperclass = true;
+            if (tokens.lexeme(name).equals(tokens.lexeme(current - 1))) {
+                resolverError(current - 1, "A class can't inherit from itself.");
+            }
+            variable(current - 1);
+        }
+        consume(LEFT_BRACE, "Expect '{' before class body.");
+
+        boolean enclosingClass = inClass;
+        boolean enclosingSubclass = inSubclass;
+        inClass = true;
+        inSubclass = hasSuperclass;
+        if (hasSuperclass) { beginScope(); }
+        beginScope();
+        try {
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+                function("method", true);
+            }
+        } finally {
+            endScope();
+            if (hasSuperclass) { endScope(); }
+            inClass = enclosingClass;
+            inSubclass = enclosingSubclass;
+        }
+
+        consume(RIGHT_BRACE, "Expect '}' after class body.");
+    }
+
+    private void structDeclaration() {
+        consume(IDENTIFIER, "Expect struct name.");
+        int name = current - 1;
+        declare(name);
+        define(tokens.lexeme(name));
+
+        consume(LEFT_BRACE, "Expect '{' before struct fields.");
+        Set<String> names = new HashSet<>();
+        if (!check(RIGHT_BRACE)) {
+            int fields = 0;
+            do {
+                if (fields >= 255) {
+                    error(current, "Can't have more than 255 fields.");
+                }
+                consume(IDENTIFIER, "Expect field name.");
+                fields++;
+                if (!names.add(tokens.lexeme(current - 1))) {
+                    resolverError(current - 1, "Already a field with this name in this struct.");
+                }
+            } while (match(COMMA));
+        }
+        consume(RIGHT_BRACE, "Expect '}' after struct fields.");
+    }
+
+    private void function(String kind, boolean isMethod) {
+        consume(IDENTIFIER, "Expect " + kind + " name.");
+        int name = current - 1;
+        if (!isMethod) {
+            declare(name);
+            define(tokens.lexeme(name));
+        }
+
+        boolean enclosingInitializer = inInitializer;
+        inInitializer = isMethod && tokens.lexeme(name).equals("init");
+        beginScope();
+        try {
+            consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
+            int parameters = 0;
+            if (!check(RIGHT_PAREN)) {
+                do {
+                    if (parameters >= 255) {
+                        error(current, "Can't have more than 255 parameters.");
+                    }
+                    consume(IDENTIFIER, "Expect parameter name.");
+                    parameters++;
+                    declare(current - 1);
+                    define(tokens.lexeme(current - 1));
+                } while (match(COMMA));
+            }
+            consume(RIGHT_PAREN, "Expect ')' after parameters.");
+
+            consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+            block();
+        } finally {
+            endScope();
+            inInitializer = enclosingInitializer;
+        }
+    }
+
+    private void varDeclaration() {
+        consume(IDENTIFIER, "Expect variable name.");
+        int name = current - 1;
+        declare(name);
+
+        if (match(EQUAL)) {
+            expression();
+        }
+
+        consume(SEMICOLON, "Expect ';' after variable declaration.");
+        define(tokens.lexeme(name));
+    }
+
+    private void statement() {
+        if (match(FOR)) {
+            forStatement();
+        } else if (match(IF)) {
+            ifStatement();
+        } else if (match(BREAK)) {
+            if (!inLoop) { resolverError(current - 1, "Can't break outside of a loop."); }
+            consume(SEMICOLON, "Expect ';' after break");
+        } else if (match(PRINT)) {
+            expression();
+            consume(SEMICOLON, "Expect ';' after value.");
+        } else if (match(RETURN)) {
+            int keyword = current - 1;
+            if (!check(SEMICOLON)) {
+                if (inInitializer) {
+                    resolverError(keyword, "Can't return a value from an initializer.");
+                }
+                expression();
+            }
+            consume(SEMICOLON, "Expect ';' after return value;");
+        } else if (match(WHILE)) {
+            consume(LEFT_PAREN, "Expect '(' after 'while'.");
+            expression();
+            consume(RIGHT_PAREN, "Expect ')' after while condition.");
+            loopBody();
+        } else if (match(LEFT_BRACE)) {
+            beginScope();
+            try {
+                block();
+            } finally {
+                endScope();
+            }
+        } else {
+            expression();
+            consume(SEMICOLON, "Expect ';' after expression.");
+        }
+    }
+
+    /**
+     * The Parser turns a for loop into a while loop, in a block with the
+     * initializer if there is one, with the increment after the body in
+     * another block. Check it in those scopes and keep the increment's
+     * errors after the body's.
+     */
+    private void forStatement() {
+        consume(LEFT_PAREN, "expect '(' after 'for'.");
+
+        boolean hasInitializer = !check(SEMICOLON);
+        if (hasInitializer) { beginScope(); }
+        try {
+            if (match(SEMICOLON)) {
+                // no initializer
+            } else if (match(VAR)) {
+                varDeclaration();
+            } else {
+                expression();
+                consume(SEMICOLON, "Expect ';' after expression.");
+            }
+
+            if (!check(SEMICOLON)) {
+                expression();
+            }
+            consume(SEMICOLON, "Expect ';' after loop condition.");
+
+            int increment = errorMessages.size();
+            boolean hasIncrement = !check(RIGHT_PAREN);
+            if (hasIncrement) {
+                expression();
+            }
+            int body = errorMessages.size();
+            consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+
+            if (hasIncrement) { beginScope(); }
+            try {
+                loopBody();
+            } finally {
+                if (hasIncrement) { endScope(); }
+            }
+            moveToEnd(increment, body);
+        } finally {
+            if (hasInitializer) { endScope(); }
+        }
+    }
+
+    private void loopBody() {
+        boolean enclosingLoop = inLoop;
+        inLoop = true;
+        try {
+            statement();
+        } finally {
+            inLoop = enclosingLoop;
+        }
+    }
+
+    private void ifStatement() {
+        consume(LEFT_PAREN, "Expect '(' after 'if'.");
+        expression();
+        consume(RIGHT_PAREN, "Expect ')' after if condition.");
+
+        statement();
+        if (match(ELSE)) {
+            statement();
+        }
+    }
+
+    private void block() {
+        while (!check(RIGHT_BRACE) && !isAtEnd()) {
+            declaration();
+        }
+
+        consume(RIGHT_BRACE, "Expect '}' after block.");
+    }
+
+    private int expression() {
+        return assignment();
+    }
+
+    private int assignment() {
+        int target = errorMessages.size();
+        int kind = or();
+
+        if (match(EQUAL)) {
+            int equals = current - 1;
+            int value = errorMessages.size();
+            assignment();
+
+            if (kind == VARIABLE) {
+                // an Assign, whose name the Resolver doesn't check
+                errorTokens.subList(target, value).clear();
+                errorMessages.subList(target, value).clear();
+            } else if (kind == GET) {
+                // a Set, whose value the Resolver checks before its object
+                moveToEnd(target, value);
+            } else {
+                error(equals, "Invalid assignment target.");
+            }
+            return OTHER;
+        }
+
+        return kind;
+    }
+
+    private int or() {
+        int kind = and();
+
+        while (match(OR)) {
+            and();
+            kind = OTHER;
+        }
+
+        return kind;
+    }
+
+    private int and() {
+        int kind = equality();
+
+        while (match(AND)) {
+            equality();
+            kind = OTHER;
+        }
+
+        return kind;
+    }
+
+    private int equality() {
+        int kind = comparison();
+
+        while (match(BANG_EQUAL) || match(EQUAL_EQUAL)) {
+            comparison();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int comparison() {
+        int kind = bitOr();
+
+        while (match(GREATER) || match(GREATER_EQUAL) || match(LESS) || match(LESS_EQUAL)) {
+            bitOr();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int bitOr() {
+        int kind = bitXor();
+
+        while (match(PIPE)) {
+            bitXor();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int bitXor() {
+        int kind = bitAnd();
+
+        while (match(CARET)) {
+            bitAnd();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int bitAnd() {
+        int kind = shift();
+
+        while (match(AMPERSAND)) {
+            shift();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int shift() {
+        int kind = term();
+
+        while (match(LESS_LESS) || match(GREATER_GREATER)) {
+            term();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int term() {
+        int kind = factor();
+
+        while (match(MINUS) || match(PLUS)) {
+            factor();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int factor() {
+        int kind = unary();
+
+        while (match(SLASH) || match(STAR) || match(TILDE_SLASH) || match(PERCENT)) {
+            unary();
+            kind = OTHER;
+        }
+        return kind;
+    }
+
+    private int unary() {
+        if (match(BANG) || match(MINUS)) {
+            unary();
+            return OTHER;
+        }
+        return call();
+    }
+
+    private int call() {
+        int kind = primary();
+
+        while (true) {
+            if (match(LEFT_PAREN)) {
+                finishCall();
+                kind = OTHER;
+            } else if (match(DOT)) {
+                consume(IDENTIFIER, "Expect property name after '.'.");
+                kind = GET;
+            } else {
+                break;
+            }
+        }
+
+        return kind;
+    }
+
+    private void finishCall() {
+        int arguments = 0;
+        if (!check(RIGHT_PAREN)) {
+            do {
+                if (arguments >= 255) {
+                    error(current, "Can't have more than 255 arguments.");
+                }
+                expression();
+                arguments++;
+            } while (match(COMMA));
+        }
+
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+    }
+
+    private int primary() {
+        if (match(FALSE) || match(TRUE) || match(NIL) || match(NUMBER) || match(STRING)) {
+            return OTHER;
+        }
+
+        if (match(SUPER)) {
+            int keyword = current - 1;
+            consume(DOT, "Expect '.' after 'super'.");
+            consume(IDENTIFIER, "Expect superclass method name.");
+            if (!inClass) {
+                resolverError(keyword, "Can't use 'super' outside of a class.");
+            } else if (!inSubclass) {
+                resolverError(keyword, "Can't use 'super' in a class with no superclass.");
+            }
+            return OTHER;
+        }
+
+        if (match(THIS)) {
+            if (!inClass) {
+                resolverError(current - 1, "Can't use 'this' outside of a class.");
+            }
+            return OTHER;
+        }
+
+        if (match(IDENTIFIER)) {
+            variable(current - 1);
+            return VARIABLE;
+        }
+
+        if (match(LEFT_PAREN)) {
+            expression();
+            consume(RIGHT_PAREN, "Expect ')' after expression.");
+            return OTHER;
+        }
+
+        throw error(current, "Expect expression.");
+    }
+
+    /** The Resolver's check of a variable expression. */
+    private void variable(int name) {
+        if (!scopes.isEmpty() && scopes.peek().get(tokens.lexeme(name)) == Boolean.FALSE) {
+            resolverError(name, "Can't read local variable in its own initializer");
+        }
+    }
+
+    private void beginScope() {
+        scopes.push(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.pop();
+    }
+
+    private void declare(int name) {
+        Map<String, Boolean> scope = scopes.peek();
+        String lexeme = tokens.lexeme(name);
+        if (scope.containsKey(lexeme)) {
+            resolverError(name, "Already a variable with this name in this scope.");
+        }
+        scope.put(lexeme, false);
+    }
+
+    private void define(String name) {
+        scopes.peek().put(name, true);
+    }
+
+    private void resolverError(int token, String message) {
+        errorTokens.add(token);
+        errorMessages.add(message);
+    }
+
+    /** Move the errors in [from, to) after the ones that follow them. */
+    private void moveToEnd(int from, int to) {
+        int size = errorMessages.size();
+        Collections.rotate(errorTokens.subList(from, size), from - to);
+        Collections.rotate(errorMessages.subList(from, size), from - to);
+    }
+
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
+        throw error(current, message);
+    }
+
+    private Parser.ParseError error(int token, String message) {
+        reporter.error(tokens.token(token), message);
+        return new Parser.ParseError();
+    }
+
+    private void synchronize() {
+        advance();
+
+        while (!isAtEnd()) {
+            if (tokens.type(current - 1) == SEMICOLON) { return; }
+
+            switch (tokens.type(current)) {
+                case CLASS:
+                case STRUCT:
+                case FUN:
+                case VAR:
+                case FOR:
+                case IF:
+                case WHILE:
+                case PRINT:
+                case RETURN:
+                    return;
+            }
+            advance();
+        }
+    }
+
+    private void advance() {
+        if (tokens.type(current) != EOF) { current++; }
+    }
+
+    private boolean isAtEnd() {
+        return current >= end || tokens.type(current) == EOF;
+    }
+
+    private boolean check(TokenType type) {
+        return tokens.type(current) == type && type != EOF;
+    }
+}
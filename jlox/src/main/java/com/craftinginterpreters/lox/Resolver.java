@@ -1,18 +1,34 @@
 package com.craftinginterpreters.lox;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+    private final ErrorReporter reporter;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    /**
+     * The slot of each struct field name seen so far, or -1 if structs
+     * disagree on it. Gets and sets of a name take its slot as a hint.
+     */
+    private final Map<String, Integer> fieldSlots;
     private FunctionType currentFunction = FunctionType.NONE;
     private LoopType currentLoop = LoopType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver() {
+        this(Lox.REPORTER);
+    }
+
+    Resolver(ErrorReporter reporter) {
+        this(reporter, new HashMap<>());
+    }
+
+    private Resolver(ErrorReporter reporter, Map<String, Integer> fieldSlots) {
+        this.reporter = reporter;
+        this.fieldSlots = fieldSlots;
     }
 
     private enum LoopType {
@@ -36,6 +52,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private ClassType currentClass = ClassType.NONE;
 
     void resolve(List<Stmt> statements) {
+        // functions declared before a struct can still get its slots
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Struct) { declareFields((Stmt.Struct) statement); }
+        }
         for (Stmt statement : statements) {
             resolve(statement);
         }
@@ -60,7 +80,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
         return null;
     }
 
@@ -84,6 +104,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitGetExpr(Expr.Get expr) {
         resolve(expr.object);
+        expr.slot = fieldSlots.getOrDefault(expr.name.lexeme, -1);
         return null;
     }
 
@@ -109,29 +130,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitSetExpr(Expr.Set expr) {
         resolve(expr.value);
         resolve(expr.object);
+        expr.slot = fieldSlots.getOrDefault(expr.name.lexeme, -1);
         return null;
     }
 
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'super' outside of a class.");
+            reporter.error(expr.keyword, "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+            reporter.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            reporter.error(expr.keyword,
                     "Can't use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
         return null;
     }
 
@@ -144,17 +166,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer");
+            reporter.error(expr.name, "Can't read local variable in its own initializer");
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
         return null;
     }
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
         if (currentLoop == LoopType.NONE) {
-            Lox.error(stmt.keyword, "Can't break outside of a loop.");
+            reporter.error(stmt.keyword, "Can't break outside of a loop.");
         }
         return null;
     }
@@ -175,7 +197,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         define(stmt.name);
 
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Lox.error(stmt.superclass.name,
+            reporter.error(stmt.superclass.name,
                     "A class can't inherit from itself.");
         }
 
@@ -230,11 +252,27 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             declare(param);
             define(param);
         }
-        resolve(function.body);
+        if (function.body instanceof LazyBody && !((LazyBody) function.body).isParsed()) {
+            ((LazyBody) function.body).resolveLater(copy(), reporter);
+        } else {
+            resolve(function.body);
+        }
         endScope();
         currentFunction = enclosingFunction;
     }
 
+    /** A Resolver in the same state, to resolve a LazyBody once it is parsed. */
+    private Resolver copy() {
+        Resolver copy = new Resolver(reporter, new HashMap<>(fieldSlots));
+        for (Map<String, Boolean> scope : scopes) {
+            copy.scopes.push(new HashMap<>(scope));
+        }
+        copy.currentFunction = currentFunction;
+        copy.currentLoop = currentLoop;
+        copy.currentClass = currentClass;
+        return copy;
+    }
+
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         resolve(stmt.condition);
@@ -252,11 +290,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code");
+            reporter.error(stmt.keyword, "Can't return from top-level code");
         }
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword,
+                reporter.error(stmt.keyword,
                         "Can't return a value from an initializer.");
             }
             resolve(stmt.value);
@@ -264,6 +302,29 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitStructStmt(Stmt.Struct stmt) {
+        declare(stmt.name);
+        define(stmt.name);
+
+        Set<String> names = new HashSet<>();
+        for (Token field : stmt.fields) {
+            if (!names.add(field.lexeme)) {
+                reporter.error(field, "Already a field with this name in this struct.");
+            }
+        }
+        declareFields(stmt);
+        return null;
+    }
+
+    private void declareFields(Stmt.Struct stmt) {
+        for (int slot = 0; slot < stmt.fields.size(); slot++) {
+            String name = stmt.fields.get(slot).lexeme;
+            Integer known = fieldSlots.putIfAbsent(name, slot);
+            if (known != null && known != slot) { fieldSlots.put(name, -1); }
+        }
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         declare(stmt.name);
@@ -281,7 +342,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         Map<String, Boolean> scope = scopes.peek();
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name, "Already a variable with this name in this scope.");
+            reporter.error(name, "Already a variable with this name in this scope.");
         }
         scope.put(name.lexeme, false);
     }
@@ -292,13 +353,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         scopes.peek().put(name.lexeme, true);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    /** Number of scopes between name and its declaration, -1 for a global. */
+    private int resolveLocal(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                return scopes.size() - 1 - i;
             }
         }
+        return -1;
     }
 
     @Override
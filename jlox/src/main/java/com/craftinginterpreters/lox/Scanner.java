@@ -1,58 +1,82 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
+/**
+ * Scans UTF-8 source bytes into a TokenBuffer.
+ *
+ * The source is read in place from a ByteBuffer, which can be a memory
+ * mapped file. Tokens record where their lexeme is in the source. Only
+ * identifiers get a lexeme String while scanning, one per distinct name,
+ * and strings get their literal value.
+ */
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>() ;
+    private final ByteBuffer source;
+    private final TokenBuffer tokens;
+    private final ErrorReporter reporter;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("break",  BREAK);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
+    /** identifier lexemes seen so far, open addressing on the FNV-1a hash */
+    private String[] symbols = new String[64];
+    private int symbolCount = 0;
+
+    /** powers of ten that are exact doubles, for number() */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
 
     Scanner(String source) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), Lox.REPORTER);
+    }
+
+    Scanner(ByteBuffer source, ErrorReporter reporter) {
         this.source = source;
+        this.tokens = new TokenBuffer(source);
+        this.reporter = reporter;
     }
 
-    List<Token> scanTokens() {
+    TokenBuffer scanTokens() {
         while(!isAtEnd()) {
             // at beginning of the next lexeme
             start = current;
-            scanToken();
+            scanLexeme();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line, null);
         return tokens;
     }
 
-    private void scanToken() {
+    /**
+     * Return a buffer that scans tokens as they are asked for instead of
+     * all of them up front.
+     */
+    TokenBuffer streamTokens() {
+        tokens.streamFrom(this);
+        return tokens;
+    }
+
+    /** Scan until one more token is added, or EOF. */
+    void scanToken() {
+        int size = tokens.size();
+        while (tokens.size() == size) {
+            if (isAtEnd()) {
+                tokens.add(EOF, current, 0, line, null);
+                return;
+            }
+            start = current;
+            scanLexeme();
+        }
+    }
+
+    /** Scan one lexeme, which may be whitespace or a comment. */
+    private void scanLexeme() {
         char c = advance();
         switch(c) {
             // one char lexemes
@@ -66,6 +90,10 @@ public class Scanner {
             case '+': addToken(PLUS); break;
             case ';': addToken(SEMICOLON); break;
             case '*': addToken(STAR); break;
+            case '%': addToken(PERCENT); break;
+            case '&': addToken(AMPERSAND); break;
+            case '|': addToken(PIPE); break;
+            case '^': addToken(CARET); break;
             // one to two char lexemes
             case '!':
                 addToken(match('=') ? BANG_EQUAL : BANG);
@@ -74,10 +102,19 @@ public class Scanner {
                 addToken(match('=') ? EQUAL_EQUAL : EQUAL);
                 break;
             case '<':
-                addToken(match('=') ? LESS_EQUAL : LESS);
+                addToken(match('<') ? LESS_LESS : match('=') ? LESS_EQUAL : LESS);
                 break;
             case '>':
-                addToken(match('=') ? GREATER_EQUAL : GREATER);
+                addToken(match('>') ? GREATER_GREATER : match('=') ? GREATER_EQUAL : GREATER);
+                break;
+            // integer division; // is taken by comments
+            case '~':
+                if (match('/')) {
+                    addToken(TILDE_SLASH);
+                } else {
+                    reporter.error(line, "Unexpected character " +
+                            text(start, current, StandardCharsets.UTF_8));
+                }
                 break;
             // longer lexemes
             case '/':
@@ -93,7 +130,7 @@ public class Scanner {
                         foundTerm = advance() == '*' && !isAtEnd() && advance() == '/';
                     }
                     if (!foundTerm) {
-                        Lox.error(line, "Unterminated multi-line comment" + c);
+                        reporter.error(line, "Unterminated multi-line comment" + c);
                     }
                 } else {
                     addToken(SLASH);
@@ -117,7 +154,10 @@ public class Scanner {
                 } else if (isAlpha(c)){
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character " + c);
+                    // report a multi-byte UTF-8 character as a whole
+                    while (isContinuationByte(peek())) { advance(); }
+                    reporter.error(line, "Unexpected character " +
+                            text(start, current, StandardCharsets.UTF_8));
                 }
                 break;
         }
@@ -125,27 +165,158 @@ public class Scanner {
 
     private void identifier() {
         while (isAlphaNumeric(peek())) { advance(); }
-        String text = source.substring(start, current);
         // check if text is actually a keyword
-        TokenType type = keywords.get(text);
-        if (type == null) {
-            type = IDENTIFIER;
+        TokenType type = identifierType();
+        if (type == IDENTIFIER) {
+            addToken(IDENTIFIER, symbol());
+        } else {
+            addToken(type);
+        }
+    }
+
+    /** Recognize keywords with a trie of switches, like clox. */
+    private TokenType identifierType() {
+        switch (charAt(start)) {
+            case 'a': return checkKeyword(1, "nd",    AND);
+            case 'b': return checkKeyword(1, "reak",  BREAK);
+            case 'c': return checkKeyword(1, "lass",  CLASS);
+            case 'e': return checkKeyword(1, "lse",   ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r",   FOR);
+                        case 'u': return checkKeyword(2, "n",   FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f",     IF);
+            case 'n': return checkKeyword(1, "il",    NIL);
+            case 'o': return checkKeyword(1, "r",     OR);
+            case 'p': return checkKeyword(1, "rint",  PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's':
+                if (current - start > 1) {
+                    switch (charAt(start + 1)) {
+                        case 't': return checkKeyword(2, "ruct", STRUCT);
+                        case 'u': return checkKeyword(2, "per",  SUPER);
+                    }
+                }
+                break;
+            case 't':
+                if (current - start > 1) {
+                    switch (charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar",    VAR);
+            case 'w': return checkKeyword(1, "hile",  WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) { return IDENTIFIER; }
+        for (int i = 0; i < rest.length(); i++) {
+            if (charAt(start + offset + i) != rest.charAt(i)) { return IDENTIFIER; }
+        }
+        return type;
+    }
+
+    /** Return the lexeme of the current identifier, one String per name. */
+    private String symbol() {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < current; i++) {
+            hash ^= charAt(i);
+            hash *= 16777619;
+        }
+
+        int mask = symbols.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            String symbol = symbols[index];
+            if (symbol == null) {
+                symbol = text(start, current, StandardCharsets.ISO_8859_1);
+                symbols[index] = symbol;
+                if (++symbolCount * 4 > symbols.length * 3) { growSymbols(); }
+                return symbol;
+            }
+            if (isLexeme(symbol)) { return symbol; }
+        }
+    }
+
+    private boolean isLexeme(String symbol) {
+        if (symbol.length() != current - start) { return false; }
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != charAt(start + i)) { return false; }
+        }
+        return true;
+    }
+
+    private void growSymbols() {
+        String[] old = symbols;
+        symbols = new String[old.length * 2];
+        int mask = symbols.length - 1;
+        for (String symbol : old) {
+            if (symbol == null) { continue; }
+            int index = LoxString.hash(symbol) & mask;
+            while (symbols[index] != null) { index = (index + 1) & mask; }
+            symbols[index] = symbol;
         }
-        addToken(type);
     }
 
     private void number() {
-        while (isDigit(peek())) { advance(); }
+        // digits are accumulated as we go, so short numbers need no parsing
+        long mantissa = charAt(start) - '0';
+        int digits = 1;
+        int fractionDigits = 0;
+        while (isDigit(peek())) {
+            mantissa = mantissa * 10 + (advance() - '0');
+            digits++;
+        }
+
+        // an L suffix makes an integer
+        if (peek() == 'L') {
+            advance();
+            integer(mantissa, digits);
+            return;
+        }
 
         // look for fractional part
         if (peek() == '.' && isDigit(peekNext())) {
             // consume the "."
             advance();
 
-            while (isDigit(peek())) { advance(); }
+            while (isDigit(peek())) {
+                mantissa = mantissa * 10 + (advance() - '0');
+                digits++;
+                fractionDigits++;
+            }
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        double value;
+        if (digits <= 15 && fractionDigits < POWERS_OF_TEN.length) {
+            // both operands are exact, so the division is correctly rounded
+            value = mantissa / POWERS_OF_TEN[fractionDigits];
+        } else {
+            value = Double.parseDouble(text(start, current, StandardCharsets.ISO_8859_1));
+        }
+        addToken(NUMBER, value);
+    }
+
+    /** An integer literal whose digits are before the L just consumed. */
+    private void integer(long mantissa, int digits) {
+        // up to 18 digits always fit in the mantissa
+        if (digits > 18) {
+            try {
+                mantissa = Long.parseLong(text(start, current - 1, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e) {
+                reporter.error(line, "Integer literal is too large.");
+                return;
+            }
+        }
+        addToken(NUMBER, Arithmetic.box(mantissa));
     }
 
     private void string() {
@@ -156,21 +327,21 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            reporter.error(line, "Unterminated string.");
             return;
         }
 
         // the closing "
         advance();
 
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        String value = text(start + 1, current - 1, StandardCharsets.UTF_8);
+        addToken(STRING, LoxString.valueOf(value));
     }
 
     // only consume current char if it matches
     private boolean match(char expected) {
         if (isAtEnd()) { return false; }
-        if (source.charAt(current) != expected) {
+        if (charAt(current) != expected) {
             return false;
         }
 
@@ -181,12 +352,12 @@ public class Scanner {
     // one char lookahead
     private char peek() {
         if (isAtEnd()) { return '\0'; }
-        return source.charAt(current);
+        return charAt(current);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) { return '\0'; }
-        return source.charAt(current + 1);
+        if (current + 1 >= source.limit()) { return '\0'; }
+        return charAt(current + 1);
     }
 
     private boolean isAlpha(char c) {
@@ -201,20 +372,39 @@ public class Scanner {
         return isAlpha(c) || isDigit(c);
     }
 
+    private boolean isContinuationByte(char c) {
+        return (c & 0xc0) == 0x80;
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= source.limit();
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return charAt(current++);
+    }
+
+    /** The byte at index as a char. ASCII bytes are the same character. */
+    private char charAt(int index) {
+        return (char) (source.get(index) & 0xff);
+    }
+
+    /** Decode source bytes [from, to) into a String. */
+    private String text(int from, int to, Charset charset) {
+        if (source.hasArray()) {
+            return new String(source.array(), source.arrayOffset() + from, to - from, charset);
+        }
+        byte[] bytes = new byte[to - from];
+        source.get(from, bytes);
+        return new String(bytes, charset);
     }
 
     private void addToken(TokenType type) {
         addToken(type, null);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    /** value is the literal, or the name of an identifier */
+    private void addToken(TokenType type, Object value) {
+        tokens.add(type, start, current - start, line, value);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,438 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An image of an interpreter's global environment: every class, struct,
+ * closure, instance, array, map and value reachable from the globals.
+ *
+ * Saving one after a prelude has run and restoring it into a new
+ * interpreter gives the same globals without running the prelude again.
+ * Function declarations are stored as one Ast arena, with their resolved
+ * depths. Objects are stored as a table in an order where each object
+ * comes after the objects its constructor needs (an environment after its
+ * enclosing one, a function after its closure, a class after its
+ * superclass, an instance after its class or struct). Their contents, which can
+ * refer to any object, come after the whole table, so cycles such as a
+ * global function whose closure is the globals are no problem. Native
+ * functions are stored by name and restored to the new interpreter's own.
+ *
+ * File layout, big-endian:
+ * <pre>
+ * int magic
+ * AstCache.VERSION, see AstCache.writeText()
+ * the declarations, see AstCache.writeAst()
+ * int object count
+ * for each object, its kind then what its constructor needs
+ * for each object, its variables, methods or fields, an array's elements
+ *     or a map's keys and values
+ * </pre>
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x4a4c5853; // "JLXS"
+
+    // object kinds
+    private static final byte GLOBALS = 0;
+    private static final byte ENVIRONMENT = 1;
+    private static final byte FUNCTION = 2;
+    private static final byte CLASS = 3;
+    private static final byte INSTANCE = 4;
+    private static final byte NATIVE = 5;
+    private static final byte STRUCT = 6;
+    private static final byte STRUCT_INSTANCE = 7;
+    private static final byte ARRAY = 8;
+    private static final byte MAP = 9;
+
+    // value tags
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte OBJECT = 5;
+    private static final byte INTEGER = 6;
+    private static final byte VEC3 = 7;
+
+    private Snapshot() {}
+
+    /**
+     * Write an image of interpreter's globals to path. The image is written
+     * to a temporary file next to path and moved into place, so a failed
+     * save leaves any image already at path as it was.
+     */
+    static void save(Interpreter interpreter, Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                new Writer(interpreter).write(out);
+            } catch (RuntimeException e) {
+                // a value the image has no encoding for
+                throw new IOException(e.getMessage(), e);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Define the globals saved in the image at path in interpreter,
+     * replacing any with the same names.
+     */
+    static void restore(Path path, Interpreter interpreter) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC) {
+                throw new IOException(path + " is not a jlox image.");
+            }
+            // the declarations are written with this version's token types
+            if (!AstCache.readText(in).equals(AstCache.VERSION)) {
+                throw new IOException(path + " was saved by another version of jlox.");
+            }
+            new Reader(in, interpreter).read();
+        } catch (RuntimeException e) {
+            throw new IOException(path + " is a damaged jlox image.", e);
+        }
+    }
+
+    private static boolean hasContents(Object object) {
+        return object instanceof Environment || object instanceof LoxClass ||
+                object instanceof LoxInstance || object instanceof LoxStructInstance ||
+                object instanceof LoxArray || object instanceof LoxMap;
+    }
+
+    private static final class Writer {
+        private final Interpreter interpreter;
+        private final Map<Object, String> nativeNames = new IdentityHashMap<>();
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final List<Object> objects = new ArrayList<>();
+        private final Map<Stmt.Function, Integer> declarationIds = new IdentityHashMap<>();
+        private final List<Stmt> declarations = new ArrayList<>();
+
+        Writer(Interpreter interpreter) {
+            this.interpreter = interpreter;
+            interpreter.natives.forEach((name, function) -> nativeNames.put(function, name));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            // number every object reachable from the globals; the list
+            // grows as the contents of the objects in it are visited
+            id(interpreter.globals);
+            for (int i = 0; i < objects.size(); i++) {
+                for (Object value : references(objects.get(i))) {
+                    if (isObject(value)) { id(value); }
+                }
+            }
+
+            out.writeInt(MAGIC);
+            AstCache.writeText(out, AstCache.VERSION);
+            AstCache.writeAst(out, Ast.encode(declarations));
+            out.writeInt(objects.size());
+            for (Object object : objects) { writeShell(out, object); }
+            for (Object object : objects) {
+                if (!hasContents(object)) { continue; }
+                if (object instanceof LoxArray) {
+                    writeElements(out, (LoxArray) object);
+                    continue;
+                }
+                if (object instanceof LoxMap) {
+                    writeEntries(out, (LoxMap) object);
+                    continue;
+                }
+                Map<String, ?> contents = contents(object);
+                out.writeInt(contents.size());
+                for (Map.Entry<String, ?> entry : contents.entrySet()) {
+                    AstCache.writeText(out, entry.getKey());
+                    writeValue(out, entry.getValue());
+                }
+            }
+        }
+
+        /** Number object after what its constructor needs. */
+        private int id(Object object) {
+            Integer id = ids.get(object);
+            if (id != null) { return id; }
+
+            if (object instanceof Environment) {
+                if (object != interpreter.globals) { id(((Environment) object).enclosing); }
+            } else if (object instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) object;
+                id(function.closure);
+                if (!declarationIds.containsKey(function.declaration)) {
+                    declarationIds.put(function.declaration, declarations.size());
+                    declarations.add(function.declaration);
+                }
+            } else if (object instanceof LoxClass) {
+                LoxClass klass = (LoxClass) object;
+                if (klass.superclass != null) { id(klass.superclass); }
+            } else if (object instanceof LoxInstance) {
+                id(((LoxInstance) object).clazz);
+            } else if (object instanceof LoxStructInstance) {
+                id(((LoxStructInstance) object).struct);
+            } else if (!(object instanceof LoxStruct) && !(object instanceof LoxArray) &&
+                    !(object instanceof LoxMap) && !nativeNames.containsKey(object)) {
+                throw new IllegalArgumentException("Can't save " + object + " in an image.");
+            }
+
+            ids.put(object, objects.size());
+            objects.add(object);
+            return objects.size() - 1;
+        }
+
+        /** The values object refers to. */
+        private Collection<?> references(Object object) {
+            if (object instanceof LoxArray) {
+                LoxArray array = (LoxArray) object;
+                List<Object> elements = new ArrayList<>(array.size());
+                for (int i = 0; i < array.size(); i++) { elements.add(array.get(i)); }
+                return elements;
+            }
+            if (object instanceof LoxMap) {
+                List<Object> entries = new ArrayList<>(references(((LoxMap) object).keys()));
+                entries.addAll(references(((LoxMap) object).values()));
+                return entries;
+            }
+            return contents(object).values();
+        }
+
+        private Map<String, ?> contents(Object object) {
+            if (object instanceof Environment) { return ((Environment) object).values; }
+            if (object instanceof LoxClass) { return ((LoxClass) object).methods; }
+            if (object instanceof LoxInstance) { return ((LoxInstance) object).fields; }
+            if (object instanceof LoxStructInstance) {
+                LoxStructInstance instance = (LoxStructInstance) object;
+                Map<String, Object> fields = new LinkedHashMap<>();
+                for (int i = 0; i < instance.struct.fields.length; i++) {
+                    fields.put(instance.struct.fields[i], instance.get(i));
+                }
+                return fields;
+            }
+            return Map.of();
+        }
+
+        private void writeShell(DataOutputStream out, Object object) throws IOException {
+            if (object == interpreter.globals) {
+                out.writeByte(GLOBALS);
+            } else if (object instanceof Environment) {
+                out.writeByte(ENVIRONMENT);
+                out.writeInt(ids.get(((Environment) object).enclosing));
+            } else if (object instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) object;
+                out.writeByte(FUNCTION);
+                out.writeInt(declarationIds.get(function.declaration));
+                out.writeInt(ids.get(function.closure));
+                out.writeBoolean(function.isInitializer);
+            } else if (object instanceof LoxClass) {
+                LoxClass klass = (LoxClass) object;
+                out.writeByte(CLASS);
+                AstCache.writeText(out, klass.name);
+                out.writeInt(klass.superclass == null ? -1 : ids.get(klass.superclass));
+            } else if (object instanceof LoxInstance) {
+                out.writeByte(INSTANCE);
+                out.writeInt(ids.get(((LoxInstance) object).clazz));
+            } else if (object instanceof LoxStruct) {
+                LoxStruct struct = (LoxStruct) object;
+                out.writeByte(STRUCT);
+                AstCache.writeText(out, struct.name);
+                out.writeInt(struct.fields.length);
+                for (String field : struct.fields) { AstCache.writeText(out, field); }
+            } else if (object instanceof LoxStructInstance) {
+                out.writeByte(STRUCT_INSTANCE);
+                out.writeInt(ids.get(((LoxStructInstance) object).struct));
+            } else if (object instanceof LoxArray) {
+                out.writeByte(ARRAY);
+            } else if (object instanceof LoxMap) {
+                out.writeByte(MAP);
+            } else {
+                out.writeByte(NATIVE);
+                AstCache.writeText(out, nativeNames.get(object));
+            }
+        }
+
+        /**
+         * The elements in order. Pushing them back gives the array the
+         * same storage, a double[] or long[] if they are all doubles or
+         * all integers.
+         */
+        private void writeElements(DataOutputStream out, LoxArray array) throws IOException {
+            out.writeInt(array.size());
+            for (int i = 0; i < array.size(); i++) { writeValue(out, array.get(i)); }
+        }
+
+        /** The entries in slot order, each key followed by its value. */
+        private void writeEntries(DataOutputStream out, LoxMap map) throws IOException {
+            LoxArray keys = map.keys();
+            LoxArray values = map.values();
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                writeValue(out, keys.get(i));
+                writeValue(out, values.get(i));
+            }
+        }
+
+        private void writeValue(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Long) {
+                out.writeByte(INTEGER);
+                out.writeLong((Long) value);
+            } else if (value instanceof LoxVec3) {
+                // an immutable value, so written in place like a number
+                LoxVec3 vector = (LoxVec3) value;
+                out.writeByte(VEC3);
+                out.writeDouble(vector.x);
+                out.writeDouble(vector.y);
+                out.writeDouble(vector.z);
+            } else if (value instanceof LoxString) {
+                out.writeByte(STRING);
+                AstCache.writeText(out, ((LoxString) value).chars);
+            } else if (value instanceof LoxRope) {
+                out.writeByte(STRING);
+                AstCache.writeText(out, ((LoxRope) value).flatten().chars);
+            } else {
+                out.writeByte(OBJECT);
+                out.writeInt(ids.get(value));
+            }
+        }
+
+        private boolean isObject(Object value) {
+            return value != null && !(value instanceof Boolean) && !(value instanceof Double) &&
+                    !(value instanceof Long) && !(value instanceof LoxVec3) &&
+                    !(value instanceof LoxString) && !(value instanceof LoxRope);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private final Interpreter interpreter;
+        private Object[] objects;
+
+        Reader(ByteBuffer in, Interpreter interpreter) {
+            this.in = in;
+            this.interpreter = interpreter;
+        }
+
+        void read() {
+            List<Stmt> declarations = AstCache.readAst(in).decode();
+            objects = new Object[AstCache.count(in, in.getInt(), 1)];
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = readShell(declarations);
+            }
+
+            for (Object object : objects) {
+                if (hasContents(object)) { readContents(object); }
+            }
+        }
+
+        private Object readShell(List<Stmt> declarations) {
+            byte kind = in.get();
+            switch (kind) {
+                case GLOBALS:
+                    return interpreter.globals;
+                case ENVIRONMENT:
+                    return new Environment((Environment) objects[in.getInt()]);
+                case FUNCTION: {
+                    Stmt.Function declaration = (Stmt.Function) declarations.get(in.getInt());
+                    Environment closure = (Environment) objects[in.getInt()];
+                    return new LoxFunction(declaration, closure, in.get() != 0);
+                }
+                case CLASS: {
+                    String name = AstCache.readText(in);
+                    int superclass = in.getInt();
+                    return new LoxClass(name, superclass < 0 ? null : (LoxClass) objects[superclass],
+                            new HashMap<>());
+                }
+                case INSTANCE:
+                    return new LoxInstance((LoxClass) objects[in.getInt()]);
+                case STRUCT: {
+                    String name = AstCache.readText(in);
+                    String[] fields = new String[AstCache.count(in, in.getInt(), 4)];
+                    for (int i = 0; i < fields.length; i++) { fields[i] = AstCache.readText(in); }
+                    return new LoxStruct(name, fields);
+                }
+                case STRUCT_INSTANCE:
+                    return new LoxStructInstance((LoxStruct) objects[in.getInt()]);
+                case ARRAY:
+                    return new LoxArray();
+                case MAP:
+                    return new LoxMap();
+                case NATIVE: {
+                    String name = AstCache.readText(in);
+                    LoxCallable function = interpreter.natives.get(name);
+                    if (function == null) {
+                        throw new IllegalArgumentException("Unknown native function " + name + ".");
+                    }
+                    return function;
+                }
+            }
+            throw new IllegalArgumentException("Unknown object kind " + kind + ".");
+        }
+
+        private void readContents(Object object) {
+            int count = in.getInt();
+            if (object instanceof LoxArray) {
+                for (int i = 0; i < count; i++) { ((LoxArray) object).push(readValue()); }
+                return;
+            }
+            if (object instanceof LoxMap) {
+                // keys hash the same in this process only, so they are inserted again
+                for (int i = 0; i < count; i++) {
+                    Object key = readValue();
+                    ((LoxMap) object).set(key, readValue());
+                }
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                String name = AstCache.readText(in);
+                Object value = readValue();
+                if (object instanceof Environment) {
+                    ((Environment) object).define(name, value);
+                } else if (object instanceof LoxClass) {
+                    ((LoxClass) object).methods.put(name, (LoxFunction) value);
+                } else if (object instanceof LoxStructInstance) {
+                    LoxStructInstance instance = (LoxStructInstance) object;
+                    instance.set(instance.struct.slot(name, i), value);
+                } else {
+                    ((LoxInstance) object).fields.put(name, value);
+                }
+            }
+        }
+
+        private Object readValue() {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL:     return null;
+                case TRUE:    return Boolean.TRUE;
+                case FALSE:   return Boolean.FALSE;
+                case NUMBER:  return in.getDouble();
+                case INTEGER: return Arithmetic.box(in.getLong());
+                case VEC3:    return new LoxVec3(in.getDouble(), in.getDouble(), in.getDouble());
+                case STRING:  return LoxString.valueOf(AstCache.readText(in));
+                case OBJECT:  return objects[in.getInt()];
+            }
+            throw new IllegalArgumentException("Unknown value tag " + tag + ".");
+        }
+    }
+}
@@ -12,6 +12,7 @@ abstract class Stmt{
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
     R visitReturnStmt(Return stmt);
+    R visitStructStmt(Struct stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
   }
@@ -125,6 +126,20 @@ abstract class Stmt{
     final Token keyword;
     final Expr value;
   }
+  public static class Struct extends Stmt {
+    Struct(Token name, List<Token> fields) {
+    this.name = name;
+    this.fields = fields;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitStructStmt(this);
+    }
+
+    final Token name;
+    final List<Token> fields;
+  }
   public static class Var extends Stmt {
     Var(Token name, Expr initializer) {
     this.name = name;
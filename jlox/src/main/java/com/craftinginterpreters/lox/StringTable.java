@@ -0,0 +1,139 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Global intern table for Lox strings.
+ *
+ * Open addressing with linear probing, like table.c in clox. Entries hold
+ * their string weakly: once a string is no longer reachable from a program
+ * the garbage collector clears the entry and it becomes a tombstone, which
+ * plays the part of table_remove_white().
+ */
+final class StringTable {
+    private static final double TABLE_MAX_LOAD = 0.75;
+
+    private static final class Entry extends WeakReference<LoxString> {
+        final int hash;
+        /** whether this entry is counted in tombstones */
+        boolean tombstone = false;
+
+        Entry(LoxString string, ReferenceQueue<LoxString> queue) {
+            super(string, queue);
+            this.hash = string.hash;
+        }
+    }
+
+    private static final ReferenceQueue<LoxString> cleared = new ReferenceQueue<>();
+    private static Entry[] entries = new Entry[0];
+    /** live entries plus tombstones, like table_t.count */
+    private static int count = 0;
+    /** cleared entries still in the table */
+    private static int tombstones = 0;
+
+    private StringTable() {}
+
+    static synchronized LoxString intern(String chars) {
+        removeCleared();
+
+        int hash = LoxString.hash(chars);
+        LoxString interned = findString(chars, hash);
+        if (interned != null) { return interned; }
+
+        if (count + 1 > entries.length * TABLE_MAX_LOAD) {
+            adjustCapacity(growCapacity(entries.length));
+        }
+
+        LoxString string = new LoxString(chars, hash);
+        int index = findSlot(entries, hash);
+        // a cleared entry is a tombstone and is already in count
+        Entry reused = entries[index];
+        if (reused == null) {
+            count++;
+        } else if (reused.tombstone) {
+            tombstones--;
+        }
+        entries[index] = new Entry(string, cleared);
+        return string;
+    }
+
+    private static LoxString findString(String chars, int hash) {
+        if (count == 0) { return null; }
+
+        int index = indexFor(hash, entries.length);
+        for (;;) {
+            Entry entry = entries[index];
+            // stop if we find an empty non-tombstone entry
+            if (entry == null) { return null; }
+
+            LoxString key = entry.get();
+            if (key != null && key.hash == hash && key.chars.equals(chars)) {
+                return key;
+            }
+            index = (index + 1) % entries.length;
+        }
+    }
+
+    /** Find the first empty or tombstone slot for hash. */
+    private static int findSlot(Entry[] entries, int hash) {
+        int index = indexFor(hash, entries.length);
+        for (;;) {
+            Entry entry = entries[index];
+            if (entry == null || entry.get() == null) { return index; }
+            index = (index + 1) % entries.length;
+        }
+    }
+
+    private static void adjustCapacity(int capacity) {
+        Entry[] resized = new Entry[capacity];
+        count = 0;
+        tombstones = 0;
+        for (Entry entry : entries) {
+            if (entry == null || entry.get() == null) { continue; }
+            resized[findSlot(resized, entry.hash)] = entry;
+            count++;
+        }
+        entries = resized;
+    }
+
+    /**
+     * Drain entries the collector has cleared. If they make up a large part of
+     * the table, rebuild it at the same capacity so lookups stay short.
+     *
+     * An entry is only a tombstone while it is still in the table: a rebuild
+     * drops cleared entries, and intern() may already have reused the slot
+     * of one that was cleared before it was drained.
+     */
+    private static void removeCleared() {
+        Entry entry;
+        while ((entry = (Entry) cleared.poll()) != null) {
+            if (contains(entry)) {
+                entry.tombstone = true;
+                tombstones++;
+            }
+        }
+        if (tombstones * 4 > entries.length) {
+            adjustCapacity(entries.length);
+        }
+    }
+
+    private static boolean contains(Entry target) {
+        if (entries.length == 0) { return false; }
+        int index = indexFor(target.hash, entries.length);
+        for (;;) {
+            Entry entry = entries[index];
+            if (entry == null) { return false; }
+            if (entry == target) { return true; }
+            index = (index + 1) % entries.length;
+        }
+    }
+
+    private static int growCapacity(int capacity) {
+        return capacity < 8 ? 8 : capacity * 2;
+    }
+
+    private static int indexFor(int hash, int capacity) {
+        return Integer.remainderUnsigned(hash, capacity);
+    }
+}
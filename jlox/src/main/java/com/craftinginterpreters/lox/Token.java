@@ -5,12 +5,21 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    /** position of the lexeme in the source, in bytes */
+    final int offset;
+    final int length;
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
+    Token(TokenType type, String lexeme, Object literal, int line, int offset, int length) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1, 0);
     }
 
     public String toString() {
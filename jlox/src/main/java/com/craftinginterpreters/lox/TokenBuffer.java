@@ -0,0 +1,154 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Tokens of a source file stored as parallel arrays.
+ *
+ * Token i is described by types[i], lines[i], offsets[i] and lengths[i].
+ * Identifiers, numbers and strings also have an entry in the values side
+ * table: the identifier's name or the literal value. Token objects are only
+ * built when the parser needs one for the AST or an error message.
+ *
+ * When streaming, the buffer asks its Scanner for tokens as the parser
+ * reaches them and the parser discards tokens it is done with, so only
+ * the tokens of the current declaration are held. Indexes keep counting
+ * from the start of the source.
+ */
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final ByteBuffer source;
+    private short[] types = new short[256];
+    private int[] lines = new int[256];
+    private int[] offsets = new int[256];
+    private int[] lengths = new int[256];
+    /** index into values, or -1 */
+    private int[] valueIndexes = new int[256];
+    private Object[] values = new Object[64];
+    private int count = 0;
+    private int valueCount = 0;
+    /** index of the first token still in the arrays */
+    private int base = 0;
+    /** scans more tokens on demand, null when not streaming or after EOF */
+    private Scanner scanner;
+
+    TokenBuffer(ByteBuffer source) {
+        this.source = source;
+    }
+
+    void streamFrom(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    void add(TokenType type, int offset, int length, int line, Object value) {
+        if (type == TokenType.EOF) { scanner = null; }
+        if (count == types.length) { grow(); }
+        types[count] = (short) type.ordinal();
+        lines[count] = line;
+        offsets[count] = offset;
+        lengths[count] = length;
+        if (value == null) {
+            valueIndexes[count] = -1;
+        } else {
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, valueCount * 2);
+            }
+            values[valueCount] = value;
+            valueIndexes[count] = valueCount++;
+        }
+        count++;
+    }
+
+    /** Number of tokens scanned so far, including discarded ones. */
+    int size() {
+        return base + count;
+    }
+
+    TokenType type(int index) {
+        // slot() may grow the arrays, so call it before reading a field
+        int slot = slot(index);
+        return TYPES[types[slot]];
+    }
+
+    int line(int index) {
+        int slot = slot(index);
+        return lines[slot];
+    }
+
+    /** The literal value of a NUMBER or STRING token. */
+    Object literal(int index) {
+        TokenType type = type(index);
+        if (type != TokenType.NUMBER && type != TokenType.STRING) { return null; }
+        int slot = slot(index);
+        return values[valueIndexes[slot]];
+    }
+
+    String lexeme(int index) {
+        TokenType type = type(index);
+        if (type.lexeme != null) { return type.lexeme; }
+        int slot = slot(index);
+        if (type == TokenType.IDENTIFIER) { return (String) values[valueIndexes[slot]]; }
+
+        byte[] bytes = new byte[lengths[slot]];
+        source.get(offsets[slot], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Build a Token object for token index. */
+    Token token(int index) {
+        int slot = slot(index);
+        return new Token(type(index), lexeme(index), literal(index),
+                lines[slot], offsets[slot], lengths[slot]);
+    }
+
+    /** Forget the tokens before index. */
+    void discardBefore(int index) {
+        int drop = index - base;
+        if (drop <= 0) { return; }
+        int keep = count - drop;
+
+        // the values of dropped tokens come before those of kept ones
+        int firstValue = valueCount;
+        for (int i = drop; i < count; i++) {
+            if (valueIndexes[i] >= 0) {
+                firstValue = valueIndexes[i];
+                break;
+            }
+        }
+
+        System.arraycopy(types, drop, types, 0, keep);
+        System.arraycopy(lines, drop, lines, 0, keep);
+        System.arraycopy(offsets, drop, offsets, 0, keep);
+        System.arraycopy(lengths, drop, lengths, 0, keep);
+        System.arraycopy(valueIndexes, drop, valueIndexes, 0, keep);
+        for (int i = 0; i < keep; i++) {
+            if (valueIndexes[i] >= 0) { valueIndexes[i] -= firstValue; }
+        }
+        System.arraycopy(values, firstValue, values, 0, valueCount - firstValue);
+        Arrays.fill(values, valueCount - firstValue, valueCount, null);
+
+        valueCount -= firstValue;
+        count = keep;
+        base = index;
+    }
+
+    /** Position of token index in the arrays, scanning up to it if needed. */
+    private int slot(int index) {
+        while (index >= base + count && scanner != null) {
+            scanner.scanToken();
+        }
+        return index - base;
+    }
+
+    private void grow() {
+        int capacity = count * 2;
+        types = Arrays.copyOf(types, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        valueIndexes = Arrays.copyOf(valueIndexes, capacity);
+    }
+}
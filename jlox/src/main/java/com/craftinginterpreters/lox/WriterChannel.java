@@ -0,0 +1,66 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Channel that decodes UTF-8 bytes into a Writer, for hosts that want
+ * output as characters. A character split between two writes is held
+ * until the rest of it arrives.
+ */
+final class WriterChannel implements WritableByteChannel {
+    private final Writer writer;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(1024);
+    /** the start of a character whose other bytes have not come yet */
+    private final ByteBuffer partial = ByteBuffer.allocate(4);
+
+    WriterChannel(Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        // finish a split character one byte at a time
+        while (partial.position() > 0 && src.hasRemaining()) {
+            partial.put(src.get());
+            partial.flip();
+            decode(partial);
+            partial.compact();
+        }
+        decode(src);
+        // keep what is left, at most three bytes of one character
+        partial.put(src);
+        writer.flush();
+        return length;
+    }
+
+    private void decode(ByteBuffer bytes) throws IOException {
+        for (;;) {
+            boolean overflow = decoder.decode(bytes, chars, false).isOverflow();
+            chars.flip();
+            writer.append(chars);
+            chars.clear();
+            if (!overflow) { return; }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.flush();
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -14,22 +15,21 @@ public class GenerateAst {
             System.exit(1);
         }
         String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign     : Token name, Expr value",
+        List<String> exprTypes = Arrays.asList(
+                "Assign     : Token name, Expr value; int depth = -1",
                 "Binary     : Expr left, Token operator, Expr right",
                 "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Get        : Expr object, Token name",
+                "Get        : Expr object, Token name; int slot = -1; transient Object cache",
                 "Grouping   : Expr expression",
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
-                "Set        : Expr object, Token name, Expr value",
-                "Super      : Token keyword, Token method",
-                "This       : Token keyword",
+                "Set        : Expr object, Token name, Expr value; int slot = -1",
+                "Super      : Token keyword, Token method; int depth = -1",
+                "This       : Token keyword; int depth = -1",
                 "Unary      : Token operator, Expr right",
-                "Variable   : Token name"
-        ));
-
-        defineAst(outputDir, "Stmt", Arrays.asList(
+                "Variable   : Token name; int depth = -1"
+        );
+        List<String> stmtTypes = Arrays.asList(
                 "Break      : Token keyword",
                 "Block      : List<Stmt> statements",
                 "Class      : Token name, Expr.Variable superclass," +
@@ -39,9 +39,14 @@ public class GenerateAst {
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
+                "Struct     : Token name, List<Token> fields",
                 "Var        : Token name, Expr initializer",
                 "While      : Expr condition, Stmt body"
-        ));
+        );
+
+        defineAst(outputDir, "Expr", exprTypes);
+        defineAst(outputDir, "Stmt", stmtTypes);
+        defineArena(outputDir, exprTypes, stmtTypes);
     }
 
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -57,8 +62,10 @@ public class GenerateAst {
         // The AST classes
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split(";");
+            List<String> state = new ArrayList<>();
+            for (int i = 1; i < fields.length; i++) { state.add(fields[i].trim()); }
+            defineType(writer, baseName, className, fields[0].trim(), state);
         }
         // the base accept() method
         writer.println();
@@ -78,7 +85,14 @@ public class GenerateAst {
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    /**
+     * fieldList are the final fields set by the constructor. state are the
+     * mutable fields filled in after parsing, like the resolved depth of a
+     * variable. A transient one is a cache the interpreter fills in while
+     * running; it is not part of the tree and is not saved.
+     */
+    private static void defineType(PrintWriter writer, String baseName, String className,
+                                   String fieldList, List<String> state) {
         writer.println("  public static class " + className + " extends " + baseName + " {");
         // Constructor
         writer.println("    " + className + "(" + fieldList + ") {");
@@ -101,6 +115,371 @@ public class GenerateAst {
         for (String field: fields) {
             writer.println("    final " + field + ";");
         }
+        for (String field : state) {
+            writer.println("    " + field + ";");
+        }
+        writer.println("  }");
+    }
+
+    /**
+     * Write Ast.java, the same trees packed into one int array. A node is
+     * its kind followed by one slot per field, two for a Token. Expr and
+     * Stmt fields hold node indexes, List fields hold list indexes and
+     * Object fields hold constant indexes. A mutable field, like the depth
+     * the Resolver fills in, takes a last slot.
+     */
+    private static void defineArena(String outputDir, List<String> exprTypes,
+                                    List<String> stmtTypes) throws IOException {
+        List<String[]> types = new ArrayList<>();
+        for (String type : exprTypes) { types.add(new String[] {"Expr", type}); }
+        for (String type : stmtTypes) { types.add(new String[] {"Stmt", type}); }
+
+        Path path = Path.of(outputDir, "Ast.java");
+        PrintWriter writer = new PrintWriter(path.toString(), StandardCharsets.UTF_8);
+
+        writer.println("package com.craftinginterpreters.lox;");
+        writer.println();
+        writer.println("import java.util.ArrayList;");
+        writer.println("import java.util.Arrays;");
+        writer.println("import java.util.HashMap;");
+        writer.println("import java.util.List;");
+        writer.println("import java.util.Map;");
+        writer.println();
+        writer.println("/**");
+        writer.println(" * Expr and Stmt trees packed into one int array.");
+        writer.println(" *");
+        writer.println(" * A node is its kind followed by one slot per field: a child node index");
+        writer.println(" * (-1 for none), a list index or a constant index. A Token takes two");
+        writer.println(" * slots, its type and lexeme constant packed into one and its line in the");
+        writer.println(" * other. A list is its size followed by its elements. Children are");
+        writer.println(" * written before their parents, so the root list of top-level statements");
+        writer.println(" * comes last. Lexemes and literal values are interned in constants.");
+        writer.println(" * Variables, assignments, this and super keep their resolved depth in");
+        writer.println(" * their last slot, and gets and sets their struct field slot hint, so a");
+        writer.println(" * resolved tree round trips.");
+        writer.println(" *");
+        writer.println(" * Generated by GenerateAst.");
+        writer.println(" */");
+        writer.println("final class Ast {");
+
+        // node kinds
+        for (int i = 0; i < types.size(); i++) {
+            String[] type = types.get(i);
+            writer.println("  static final int " + kindName(type) + " = " + i + ";");
+        }
+
+        writer.println();
+        writer.println("  interface Visitor<R> {");
+        for (String[] type : types) {
+            writer.println("    R visit" + className(type) + type[0] + "(int node);");
+        }
+        writer.println("  }");
+
+        writer.println();
+        writer.println("  private static final TokenType[] TOKEN_TYPES = TokenType.values();");
+        writer.println("  private static final int TYPE_SHIFT = 24;");
+        writer.println("  private static final int CONSTANT_MASK = (1 << TYPE_SHIFT) - 1;");
+        writer.println();
+        writer.println("  final int[] nodes;");
+        writer.println("  final Object[] constants;");
+        writer.println("  /** list of the top-level statements */");
+        writer.println("  final int root;");
+        writer.println();
+        writer.println("  Ast(int[] nodes, Object[] constants, int root) {");
+        writer.println("    this.nodes = nodes;");
+        writer.println("    this.constants = constants;");
+        writer.println("    this.root = root;");
+        writer.println("  }");
+        writer.println();
+        writer.println("  static Ast encode(List<Stmt> statements) {");
+        writer.println("    Encoder encoder = new Encoder();");
+        writer.println("    int root = encoder.stmtList(statements);");
+        writer.println("    return new Ast(Arrays.copyOf(encoder.nodes, encoder.count),");
+        writer.println("        encoder.constants.toArray(), root);");
+        writer.println("  }");
+        writer.println();
+        writer.println("  /** Rebuild the object tree. */");
+        writer.println("  List<Stmt> decode() {");
+        writer.println("    return new Decoder().list(root);");
+        writer.println("  }");
+        writer.println();
+        writer.println("  int kind(int node) {");
+        writer.println("    return nodes[node];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  <R> R accept(int node, Visitor<R> visitor) {");
+        writer.println("    switch (nodes[node]) {");
+        for (String[] type : types) {
+            writer.println("      case " + kindName(type) + ": return visitor.visit" +
+                    className(type) + type[0] + "(node);");
+        }
+        writer.println("    }");
+        writer.println("    throw new IllegalArgumentException(\"No node at \" + node + \".\");");
+        writer.println("  }");
+        writer.println();
+        writer.println("  int size(int list) {");
+        writer.println("    return nodes[list];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  /** Element i of a list of nodes. */");
+        writer.println("  int node(int list, int i) {");
+        writer.println("    return nodes[list + 1 + i];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  /** Element i of a list of tokens. */");
+        writer.println("  Token token(int list, int i) {");
+        writer.println("    return tokenAt(list + 1 + 2 * i);");
+        writer.println("  }");
+        writer.println();
+        writer.println("  private Token tokenAt(int slot) {");
+        writer.println("    int packed = nodes[slot];");
+        writer.println("    return new Token(TOKEN_TYPES[packed >>> TYPE_SHIFT],");
+        writer.println("        (String) constants[packed & CONSTANT_MASK], null, nodes[slot + 1]);");
+        writer.println("  }");
+        writer.println();
+        writer.println("  private Object constantAt(int slot) {");
+        writer.println("    int index = nodes[slot];");
+        writer.println("    return index < 0 ? null : constants[index];");
+        writer.println("  }");
+
+        // field accessors
+        for (String[] type : types) {
+            writer.println();
+            writer.println("  // " + className(type) + " " + type[0] + ": " + String.join(", ", arenaFields(type)));
+            int slot = 1;
+            for (String field : arenaFields(type)) {
+                String fieldType = field.split(" ")[0];
+                String accessor = accessorName(type, field.split(" ")[1]);
+                if (fieldType.equals("Token")) {
+                    writer.println("  Token " + accessor + "(int node) { return tokenAt(node + " + slot + "); }");
+                } else if (fieldType.equals("Object")) {
+                    writer.println("  Object " + accessor + "(int node) { return constantAt(node + " + slot + "); }");
+                } else {
+                    writer.println("  int " + accessor + "(int node) { return nodes[node + " + slot + "]; }");
+                }
+                slot += slots(fieldType);
+            }
+        }
+
+        defineEncoder(writer, types);
+        defineDecoder(writer, types);
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static void defineEncoder(PrintWriter writer, List<String[]> types) {
+        writer.println();
+        writer.println("  private static final class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {");
+        writer.println("    private int[] nodes = new int[256];");
+        writer.println("    private int count = 0;");
+        writer.println("    private final List<Object> constants = new ArrayList<>();");
+        writer.println("    private final Map<Object, Integer> constantIndexes = new HashMap<>();");
+        writer.println();
+        writer.println("    private int reserve(int slots) {");
+        writer.println("      if (count + slots > nodes.length) {");
+        writer.println("        nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, count + slots));");
+        writer.println("      }");
+        writer.println("      int start = count;");
+        writer.println("      count += slots;");
+        writer.println("      return start;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int node(int kind, int slots) {");
+        writer.println("      int node = reserve(1 + slots);");
+        writer.println("      nodes[node] = kind;");
+        writer.println("      return node;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int child(Expr expr) {");
+        writer.println("      return expr == null ? -1 : expr.accept(this);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int child(Stmt stmt) {");
+        writer.println("      return stmt == null ? -1 : stmt.accept(this);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int exprList(List<? extends Expr> exprs) {");
+        writer.println("      int[] children = new int[exprs.size()];");
+        writer.println("      for (int i = 0; i < children.length; i++) { children[i] = child(exprs.get(i)); }");
+        writer.println("      return nodeList(children);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int stmtList(List<? extends Stmt> stmts) {");
+        writer.println("      int[] children = new int[stmts.size()];");
+        writer.println("      for (int i = 0; i < children.length; i++) { children[i] = child(stmts.get(i)); }");
+        writer.println("      return nodeList(children);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int nodeList(int[] children) {");
+        writer.println("      int list = reserve(1 + children.length);");
+        writer.println("      nodes[list] = children.length;");
+        writer.println("      System.arraycopy(children, 0, nodes, list + 1, children.length);");
+        writer.println("      return list;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int tokenList(List<Token> tokens) {");
+        writer.println("      int list = reserve(1 + 2 * tokens.size());");
+        writer.println("      nodes[list] = tokens.size();");
+        writer.println("      for (int i = 0; i < tokens.size(); i++) { putToken(list + 1 + 2 * i, tokens.get(i)); }");
+        writer.println("      return list;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private void putToken(int slot, Token token) {");
+        writer.println("      nodes[slot] = token.type.ordinal() << TYPE_SHIFT | constant(token.lexeme);");
+        writer.println("      nodes[slot + 1] = token.line;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private int constant(Object value) {");
+        writer.println("      if (value == null) { return -1; }");
+        writer.println("      Integer index = constantIndexes.get(value);");
+        writer.println("      if (index == null) {");
+        writer.println("        index = constants.size();");
+        writer.println("        if (index > CONSTANT_MASK) { throw new IllegalStateException(\"Too many constants.\"); }");
+        writer.println("        constants.add(value);");
+        writer.println("        constantIndexes.put(value, index);");
+        writer.println("      }");
+        writer.println("      return index;");
+        writer.println("    }");
+
+        for (String[] type : types) {
+            String param = type[0].toLowerCase();
+            List<String> fields = arenaFields(type);
+            writer.println();
+            writer.println("    @Override");
+            writer.println("    public Integer visit" + className(type) + type[0] + "(" +
+                    type[0] + "." + className(type) + " " + param + ") {");
+            // children go first so that a node's slots are contiguous
+            int slotCount = 0;
+            for (String field : fields) {
+                String fieldType = field.split(" ")[0];
+                String name = field.split(" ")[1];
+                slotCount += slots(fieldType);
+                if (fieldType.equals("List<Token>")) {
+                    writer.println("      int " + name + " = tokenList(" + param + "." + name + ");");
+                } else if (fieldType.startsWith("List<")) {
+                    writer.println("      int " + name + " = " + fieldType.substring(5, 9).toLowerCase() +
+                            "List(" + param + "." + name + ");");
+                } else if (fieldType.startsWith("Expr") || fieldType.startsWith("Stmt")) {
+                    writer.println("      int " + name + " = child(" + param + "." + name + ");");
+                }
+            }
+            writer.println("      int node = node(" + kindName(type) + ", " + slotCount + ");");
+            int slot = 1;
+            for (String field : fields) {
+                String fieldType = field.split(" ")[0];
+                String name = field.split(" ")[1];
+                if (fieldType.equals("Token")) {
+                    writer.println("      putToken(node + " + slot + ", " + param + "." + name + ");");
+                } else if (fieldType.equals("Object")) {
+                    writer.println("      nodes[node + " + slot + "] = constant(" + param + "." + name + ");");
+                } else if (fieldType.equals("int")) {
+                    writer.println("      nodes[node + " + slot + "] = " + param + "." + name + ";");
+                } else {
+                    writer.println("      nodes[node + " + slot + "] = " + name + ";");
+                }
+                slot += slots(fieldType);
+            }
+            writer.println("      return node;");
+            writer.println("    }");
+        }
         writer.println("  }");
     }
-}
\ No newline at end of file
+
+    private static void defineDecoder(PrintWriter writer, List<String[]> types) {
+        writer.println();
+        writer.println("  private final class Decoder implements Visitor<Object> {");
+        writer.println("    @SuppressWarnings(\"unchecked\")");
+        writer.println("    private <T> T child(int node) {");
+        writer.println("      return node < 0 ? null : (T) accept(node, this);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private <T> List<T> list(int list) {");
+        writer.println("      List<T> children = new ArrayList<>(size(list));");
+        writer.println("      for (int i = 0; i < size(list); i++) { children.add(child(node(list, i))); }");
+        writer.println("      return children;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private List<Token> tokens(int list) {");
+        writer.println("      List<Token> tokens = new ArrayList<>(size(list));");
+        writer.println("      for (int i = 0; i < size(list); i++) { tokens.add(token(list, i)); }");
+        writer.println("      return tokens;");
+        writer.println("    }");
+
+        for (String[] type : types) {
+            writer.println();
+            writer.println("    @Override");
+            writer.println("    public Object visit" + className(type) + type[0] + "(int node) {");
+            List<String> args = new ArrayList<>();
+            for (String field : fieldList(type).split(", ")) {
+                String fieldType = field.split(" ")[0];
+                String get = accessorName(type, field.split(" ")[1]) + "(node)";
+                if (fieldType.equals("Token") || fieldType.equals("Object")) {
+                    args.add(get);
+                } else if (fieldType.equals("List<Token>")) {
+                    args.add("tokens(" + get + ")");
+                } else if (fieldType.startsWith("List<")) {
+                    args.add("list(" + get + ")");
+                } else {
+                    args.add("child(" + get + ")");
+                }
+            }
+            String created = "new " + type[0] + "." + className(type) + "(" +
+                    String.join(", ", args) + ")";
+            String state = stateField(type);
+            if (state == null) {
+                writer.println("      return " + created + ";");
+            } else {
+                String param = type[0].toLowerCase();
+                String name = state.split(" ")[1];
+                writer.println("      " + type[0] + "." + className(type) + " " + param + " = " + created + ";");
+                writer.println("      " + param + "." + name + " = " + accessorName(type, name) + "(node);");
+                writer.println("      return " + param + ";");
+            }
+            writer.println("    }");
+        }
+        writer.println("  }");
+    }
+
+    private static String className(String[] type) {
+        return type[1].split(":")[0].trim();
+    }
+
+    private static String fieldList(String[] type) {
+        return type[1].split(":")[1].split(";")[0].trim();
+    }
+
+    /** The saved mutable field after ';', like "int depth", or null. */
+    private static String stateField(String[] type) {
+        String[] parts = type[1].split(":")[1].split(";");
+        for (int i = 1; i < parts.length; i++) {
+            String state = parts[i].split("=")[0].trim();
+            if (!state.startsWith("transient ")) { return state; }
+        }
+        return null;
+    }
+
+    /** The fields stored in a node: the constructor's, then the mutable one. */
+    private static List<String> arenaFields(String[] type) {
+        List<String> fields = new ArrayList<>(Arrays.asList(fieldList(type).split(", ")));
+        String state = stateField(type);
+        if (state != null) { fields.add(state); }
+        return fields;
+    }
+
+    /** Assign in Expr is ASSIGN_EXPR */
+    private static String kindName(String[] type) {
+        return className(type).toUpperCase() + "_" + type[0].toUpperCase();
+    }
+
+    /** name in Assign in Expr is assignExprName */
+    private static String accessorName(String[] type, String field) {
+        String className = className(type);
+        return Character.toLowerCase(className.charAt(0)) + className.substring(1) + type[0] +
+                Character.toUpperCase(field.charAt(0)) + field.substring(1);
+    }
+
+    private static int slots(String fieldType) {
+        return fieldType.equals("Token") ? 2 : 1;
+    }
+}
@@ -7,7 +7,7 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 
-class LoxTests {
+class AstPrintTest {
     /** remove prefix (if it exists) from string. */
     private static String removePrefix(String s, String prefix) {
         if (s != null && prefix != null && s.startsWith(prefix)) {
@@ -3,9 +3,34 @@ package com.craftinginterpreters.lox;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
 
 class LoxTests {
     /** remove prefix (if it exists) from string. */
@@ -28,9 +53,21 @@ class LoxTests {
         return !(isStart(s) || isContinuation(s));
     }
 
+    /**
+     * Runs every script runAndCompare() and runAndComparePattern() run,
+     * with --lazy, so the PreParser's copy of the grammar and scope rules
+     * is checked against the whole corpus. It has its own globals, which
+     * see the same scripts in the same order as the shared isolate's.
+     */
+    private Isolate lazy;
+    private final ByteArrayOutputStream lazyOutput = new ByteArrayOutputStream();
+
     @BeforeEach
     void init() {
         Lox.hadError = false;
+        lazyOutput.reset();
+        lazy = new Isolate(lazyOutput, lazyOutput);
+        lazy.lazyFunctions = true;
     }
 
     /**
@@ -40,16 +77,20 @@ class LoxTests {
      * @param script Lox source text
      */
     private String runner(String script) {
+        return runner(script, Lox.Pipeline.SEQUENTIAL);
+    }
+
+    private String runner(String script, Lox.Pipeline pipeline) {
         PrintStream oldOut = System.out;
         PrintStream oldErr = System.err;
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
-            System.setOut(new PrintStream(os));
-            System.setErr(new PrintStream(os));
-            Lox.run(script);
+            System.setOut(new PrintStream(os, false, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(os, false, StandardCharsets.UTF_8));
+            Lox.run(script, pipeline);
             System.out.flush();
             System.err.flush();
-            return os.toString();
+            return os.toString(StandardCharsets.UTF_8);
         } finally {
             // restore System.out
             System.setOut(oldOut);
@@ -64,6 +105,7 @@ class LoxTests {
      */
     private void runAndCompare(String script, String expected) {
         final String actual = runner(script);
+        assertLazyMatches(script, actual);
         final String msg = "running test script\n" + script;
         if (expected != null) {
             Assertions.assertEquals(expected.trim(), actual.trim(), msg);
@@ -72,6 +114,7 @@ class LoxTests {
 
     private void runAndComparePattern(String script, String expected) {
         final String actual = runner(script);
+        assertLazyMatches(script, actual);
         if (expected != null) {
             Assertions.assertTrue(actual.strip().matches(expected),
                     "Actual string '" + actual +
@@ -79,6 +122,13 @@ class LoxTests {
         }
     }
 
+    /** Run script with --lazy and check it printed and reported what eager did. */
+    private void assertLazyMatches(String script, String eager) {
+        lazyOutput.reset();
+        lazy.run(script);
+        Assertions.assertEquals(eager, lazyOutput.toString(StandardCharsets.UTF_8), "running lazily\n" + script);
+    }
+
     private void runDocTest(String docTest) {
         String[] lines = docTest.split("\n");
         int index = 0;
@@ -976,4 +1026,1206 @@ class LoxTests {
                 errorPattern("Can't break outside of a loop"));
         Lox.hadError = false;
     }
-}
\ No newline at end of file
+
+    @Test
+    void stringEqualityTest() {
+        runDocTest("""
+                >>> var tag = "ci";
+                ... print "ab" + tag == "abci";
+                true
+                >>> print "n" + 1 == "n1";
+                true
+                >>> print "abc" == "ab";
+                false
+                >>> print "1" == 1;
+                false
+                """);
+        Assertions.assertSame(LoxString.valueOf("lox"), LoxString.valueOf("lo" + "x".trim()));
+    }
+
+    @Test
+    void stringConcatLoopTest() {
+        runDocTest("""
+                >>> var s = "";
+                ... for (var i = 0; i < 5000; i = i + 1) {
+                ...     s = s + "x";
+                ... }
+                ... var t = "";
+                ... for (var i = 0; i < 5000; i = i + 1) {
+                ...     t = "x" + t;
+                ... }
+                ... print s == t;
+                true
+                >>> var row = "";
+                ... for (var i = 0; i < 3; i = i + 1) {
+                ...     row = row + i + ",";
+                ... }
+                ... print row;
+                ... print "" + row == "0,1,2,";
+                0,1,2,
+                true
+                """);
+    }
+
+    @Test
+    void printConcatenationTest() {
+        runDocTest("""
+                >>> print 1 + 2 + " " + 3 + " " + 0.5 + " " + -0 + nil + true;
+                3 3 0.5 -0niltrue
+                >>> fun side(x) {
+                ...     print "side " + x;
+                ...     return x;
+                ... }
+                ... print "a" + side(1) + side("b");
+                side 1
+                side b
+                a1b
+                >>> var s = "x" + "y";
+                ... print s + (1 + 2) + s;
+                xy3xy
+                """);
+        runAndComparePattern("""
+                print "a" + 1 + (nil + 1);
+                """,
+                runtimeErrorPattern("Operands must be two numbers or two strings"));
+    }
+
+    @Test
+    void numberFormatTest() {
+        runDocTest("""
+                >>> print 0.1 + 0.2;
+                0.30000000000000004
+                >>> print 1 / 3;
+                0.3333333333333333
+                >>> print 9999999;
+                9999999
+                >>> print 10000000;
+                1.0E7
+                >>> print 123456789.5;
+                1.234567895E8
+                >>> print 0.001;
+                0.001
+                >>> print 0.0001;
+                1.0E-4
+                >>> print -0;
+                -0
+                >>> print -2.50;
+                -2.5
+                >>> print "" + 0.5 + " " + 1000;
+                0.5 1000
+                """);
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < 10000; i++) {
+            double d = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(d)) { continue; }
+            String text = NumberFormatter.toString(d);
+            Assertions.assertEquals(d, Double.parseDouble(text), text);
+            String jdk = Double.toString(d);
+            Assertions.assertTrue(text.length() <= jdk.length(), text + " vs " + jdk);
+        }
+    }
+
+    @Test
+    void scannerTest() {
+        runDocTest("""
+                >>> var fore = 1; var classy = 2; var t = 3; var f = 4; var thisx = 5; var breaker = 6;
+                ... print fore + classy + t + f + thisx + breaker;
+                21
+                >>> print 3.14159;
+                3.14159
+                >>> print 0.1 + 100.25;
+                100.35
+                >>> print 123456789012345678901234567890;
+                1.2345678901234568E29
+                >>> print 1.00000000000000000001;
+                1
+                """);
+        runAndComparePattern("""
+                var a = 1 § 2;
+                """,
+                errorPattern("Unexpected character"));
+    }
+
+    @Test
+    void tokenLexemeErrTest() {
+        runAndComparePattern("""
+                var 12.50 = 3;
+                """,
+                errorPattern("at '12.50': Expect variable name."));
+        Lox.hadError = false;
+        runAndComparePattern("""
+                var "name" = 3;
+                """,
+                errorPattern("at '\"name\"': Expect variable name."));
+    }
+
+    @Test
+    void arenaAstTest() {
+        String source = """
+                class A { init(x) { this.x = x; } get() { return this.x; } }
+                class B < A { get() { return super.get() + 1; } }
+                fun add(a, b) { return a + b; }
+                var s = "str";
+                for (var i = 0; i < 3; i = i + 1) {
+                    if (i == 1 and !false) print -i; else print nil;
+                    while (true) break;
+                }
+                print add(B(1).get(), 0.5) * (2 - 1) / 3 or s;
+                """;
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        Assertions.assertFalse(Lox.hadError);
+        Ast ast = Ast.encode(statements);
+
+        // decoding and encoding again gives the same arena
+        Ast again = Ast.encode(ast.decode());
+        Assertions.assertArrayEquals(ast.nodes, again.nodes);
+        Assertions.assertArrayEquals(ast.constants, again.constants);
+
+        // lexemes and literals are stored once
+        Assertions.assertEquals(1, Collections.frequency(Arrays.asList(ast.constants), "x"));
+        Assertions.assertEquals(1, Collections.frequency(Arrays.asList(ast.constants), 1.0));
+
+        Assertions.assertEquals(6, ast.size(ast.root));
+        int print = ast.node(ast.root, 5);
+        Assertions.assertEquals(Ast.PRINT_STMT, ast.kind(print));
+        int or = ast.printStmtExpression(print);
+        Assertions.assertEquals(Ast.LOGICAL_EXPR, ast.kind(or));
+        Token operator = ast.logicalExprOperator(or);
+        Assertions.assertEquals(TokenType.OR, operator.type);
+        Assertions.assertEquals(9, operator.line);
+
+        int function = ast.node(ast.root, 2);
+        Assertions.assertEquals("add", ast.functionStmtName(function).lexeme);
+        int params = ast.functionStmtParams(function);
+        Assertions.assertEquals(2, ast.size(params));
+        Assertions.assertEquals("b", ast.token(params, 1).lexeme);
+    }
+
+    @Test
+    void streamTest() {
+        String script = """
+                class Counter {
+                    init() { this.n = 0; }
+                    inc() { this.n = this.n + 1; return this.n; }
+                }
+                var c = Counter();
+                fun twice(f) { f(); return f(); }
+                print twice(c.inc);
+                {
+                    var a = "outer";
+                    fun show() { print a; }
+                    show();
+                }
+                for (var i = 0; i < 2; i = i + 1) print i;
+                """;
+        String batch = runner(script);
+        Assertions.assertEquals("2\nouter\n0\n1", batch.strip());
+        Assertions.assertEquals(batch, runner(script, Lox.Pipeline.STREAM));
+    }
+
+    @Test
+    void streamErrorTest() {
+        // statements before a syntax error have already run
+        String actual = runner("""
+                print "before";
+                print 1 +;
+                print "after";
+                var = 2;
+                """, Lox.Pipeline.STREAM);
+        Assertions.assertTrue(actual.startsWith("before"), actual);
+        Assertions.assertFalse(actual.contains("after"), actual);
+        Assertions.assertTrue(actual.contains("[line 2] Error at ';': Expect expression."), actual);
+        Assertions.assertTrue(actual.contains("[line 4] Error at '=': Expect variable name."), actual);
+
+        // a runtime error stops the script
+        Lox.hadError = false;
+        actual = runner("""
+                print "one";
+                print -"two";
+                print "three";
+                """, Lox.Pipeline.STREAM);
+        Assertions.assertTrue(actual.startsWith("one"), actual);
+        Assertions.assertTrue(actual.contains("Operand must be a number"), actual);
+        Assertions.assertFalse(actual.contains("three"), actual);
+
+        // errors inside blocks and function bodies are reported too
+        for (String script : List.of("fun f() { var x = ; }\nprint 1;\n", "{ var x = ; }\nprint 1;\n")) {
+            Lox.hadError = false;
+            actual = runner(script, Lox.Pipeline.STREAM);
+            Assertions.assertTrue(actual.contains("[line 1] Error at ';': Expect expression."), actual);
+            Assertions.assertFalse(actual.contains("Exception"), actual);
+            Assertions.assertFalse(actual.startsWith("1"), actual);
+        }
+    }
+
+    /** A script long enough to be split into several parallel chunks. */
+    private static String library(int functions, String extra) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            sb.append("fun f").append(i).append("(a) { var b = a + ").append(i).append("; return b; }\n");
+            sb.append("class C").append(i).append(" { m() { return this; } }\n");
+            if (i % 500 == 250) { sb.append(extra).append("\n"); }
+        }
+        sb.append("print f").append(functions - 1).append("(1);\n");
+        return sb.toString();
+    }
+
+    @Test
+    void parallelFrontEndTest() {
+        String script = library(2000, "print f1(2) + f2(3);");
+        String sequential = runner(script);
+        Assertions.assertTrue(sequential.startsWith("8\n"), sequential);
+        Assertions.assertEquals(sequential, runner(script, Lox.Pipeline.PARALLEL));
+    }
+
+    @Test
+    void parallelFrontEndErrorTest() {
+        // resolver errors in many chunks come out in source order
+        String script = library(2000, "return 1; { var x = 1; var x = 2; }");
+        String sequential = runner(script);
+        Assertions.assertTrue(sequential.contains("Can't return from top-level code"), sequential);
+        Lox.hadError = false;
+        Assertions.assertEquals(sequential, runner(script, Lox.Pipeline.PARALLEL));
+
+        // so do syntax errors, including ones the parser recovers from across chunks
+        Lox.hadError = false;
+        script = library(2000, "print (1;") + "fun (";
+        sequential = runner(script);
+        Assertions.assertTrue(sequential.contains("Expect ')' after expression."), sequential);
+        Lox.hadError = false;
+        Assertions.assertEquals(sequential, runner(script, Lox.Pipeline.PARALLEL));
+    }
+
+    /** Run script with function bodies parsed when they are first called. */
+    private String lazyRunner(String script) {
+        Lox.lazyFunctions = true;
+        try {
+            return runner(script);
+        } finally {
+            Lox.lazyFunctions = false;
+        }
+    }
+
+    @Test
+    void lazyFunctionTest() {
+        String script = """
+                class A {
+                    init(x) { this.x = x; }
+                    get() { return this.x; }
+                }
+                class B < A {
+                    get() { return super.get() + 1; }
+                }
+                var a = "global";
+                {
+                    fun show() { print a; }
+                    show();
+                    var a = "local";
+                    show();
+                }
+                fun counter() {
+                    var n = 0;
+                    fun inc() { n = n + 1; return n; }
+                    return inc;
+                }
+                var c = counter();
+                c();
+                print c();
+                print B(1).get();
+                fun unused() { print "never"; }
+                """;
+        String eager = runner(script);
+        Assertions.assertEquals("global\nglobal\n2\n2", eager.strip());
+        Assertions.assertEquals(eager, lazyRunner(script));
+
+        List<Stmt> statements = new Parser(new Scanner(script).scanTokens(), true).parse();
+        Stmt.Function unused = (Stmt.Function) statements.get(statements.size() - 1);
+        Assertions.assertFalse(((LazyBody) unused.body).isParsed());
+        Assertions.assertEquals(1, unused.body.size());
+        Assertions.assertTrue(((LazyBody) unused.body).isParsed());
+    }
+
+    @Test
+    void lazyFunctionErrorTest() {
+        // errors in bodies that never run are found, in the same order
+        String[] scripts = {
+                "fun f() { print 1 +; var = 2; } fun g() { print (; }",
+                "fun f() { this; } class A { m() { super.m(); return; } init() { return 1; } }",
+                "fun f(a) { var a = 1; { var b = b; } break; }",
+                "fun f() { for (var i = 0; i < 1; this) { break; super.x; } x.y = this; }",
+                "fun f() { a = this; (a) = 1; a.b = super.c; }",
+                "fun f() { class B < B {} } while (true) { fun g() { break; } }",
+        };
+        for (String script : scripts) {
+            Lox.hadError = false;
+            String eager = runner(script);
+            Assertions.assertTrue(eager.contains("Error"), eager);
+            Lox.hadError = false;
+            Assertions.assertEquals(eager, lazyRunner(script), script);
+        }
+    }
+
+    @Test
+    void precedenceTest() {
+        runDocTest("""
+                >>> print 1 + 2 * 3 - 4 / 2;
+                5
+                >>> print 2 - 3 - 4;
+                -5
+                >>> print 12 / 3 / 2;
+                2
+                >>> print -2 * -3;
+                6
+                >>> print (1 + 2) * 3;
+                9
+                >>> print !true == false;
+                true
+                >>> print 1 < 2 == 2 < 3;
+                true
+                >>> print nil or true and false;
+                false
+                >>> print "a" + "b" == "ab" and 1 + 1 >= 2;
+                true
+                >>> class P { init() { this.x = 1; } }
+                ... var p = P();
+                ... var q = p.x = -p.x * 3 + 1;
+                ... print q;
+                ... print p.x;
+                -2
+                -2
+                >>> var a; var b;
+                ... a = b = 2 + 3;
+                ... print a + b;
+                10
+                """);
+        runAndComparePattern("var a = 1; var b = 2; a + b = 3;",
+                errorPattern("at '=': Invalid assignment target."));
+        Lox.hadError = false;
+        runAndComparePattern("print 1 + * 2;", errorPattern("at '\\*': Expect expression."));
+    }
+
+    @Test
+    void astCacheTest(@TempDir Path dir) throws IOException {
+        String script = """
+                class A { init(x) { this.x = x; } get() { return this.x; } }
+                class B < A { get() { return super.get() + 1; } }
+                var a = "global";
+                {
+                    fun show() { print a; }
+                    show();
+                    var a = "local";
+                    show();
+                }
+                print B(1).get() + 0.5;
+                print "long " + "string" == "long string";
+                """;
+        String uncached = runner(script);
+        Assertions.assertEquals("global\nglobal\n2.5\ntrue", uncached.strip());
+
+        Lox.cache = new AstCache(dir);
+        try {
+            Assertions.assertEquals(uncached, runner(script));
+            try (var entries = Files.list(dir)) {
+                Assertions.assertEquals(1, entries.count());
+            }
+            // the second run comes from the cache, with the resolved depths
+            Assertions.assertEquals(uncached, runner(script));
+
+            AstCache cache = Lox.cache;
+            String key = cache.key(ByteBuffer.wrap(script.getBytes(StandardCharsets.UTF_8)));
+            Ast cached = cache.load(key);
+            Assertions.assertNotNull(cached);
+            List<Stmt> statements = new Parser(new Scanner(script).scanTokens()).parse();
+            new Resolver().resolve(statements);
+            Ast compiled = Ast.encode(statements);
+            Assertions.assertArrayEquals(compiled.nodes, cached.nodes);
+            Assertions.assertArrayEquals(compiled.constants, cached.constants);
+
+            // programs with errors are not saved, and damaged entries are misses
+            runAndComparePattern("print 1 +;", errorPattern("Expect expression."));
+            try (var entries = Files.list(dir)) {
+                Assertions.assertEquals(1, entries.count());
+            }
+            Files.write(dir.resolve(key), new byte[] {1, 2, 3});
+            Assertions.assertNull(cache.load(key));
+            // counts that would need gigabytes are misses too, not OutOfMemoryErrors
+            ByteBuffer nodes = ByteBuffer.allocate(16).putInt(0x4a4c5841).putInt(0)
+                    .putInt(Integer.MAX_VALUE).putInt(0);
+            ByteBuffer constants = ByteBuffer.allocate(16).putInt(0x4a4c5841).putInt(0)
+                    .putInt(0).putInt(Integer.MAX_VALUE);
+            ByteBuffer text = ByteBuffer.allocate(21).putInt(0x4a4c5841).putInt(0)
+                    .putInt(0).putInt(1).put((byte) 0).putInt(Integer.MAX_VALUE);
+            for (ByteBuffer entry : List.of(nodes, constants, text)) {
+                Files.write(dir.resolve(key), entry.array());
+                Assertions.assertNull(cache.load(key));
+            }
+            Lox.hadError = false;
+            Assertions.assertEquals(uncached, runner(script));
+            Assertions.assertNotNull(cache.load(key));
+        } finally {
+            Lox.cache = null;
+        }
+    }
+
+    /** An interpreter of its own that prints to System.out when flushed. */
+    private Interpreter newInterpreter() {
+        return new Isolate(OutputBuffer.systemOut(OutputBuffer.FlushPolicy.SIZE), System.err).interpreter;
+    }
+
+    /** Run script in interpreter instead of Lox's own, returning the output. */
+    private String interpret(Interpreter interpreter, String script) {
+        PrintStream oldOut = System.out;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(os));
+            List<Stmt> statements = new Parser(new Scanner(script).scanTokens()).parse();
+            new Resolver().resolve(statements);
+            Assertions.assertFalse(Lox.hadError);
+            interpreter.interpret(statements);
+            interpreter.getOutput().flush();
+            System.out.flush();
+            return os.toString();
+        } finally {
+            System.setOut(oldOut);
+        }
+    }
+
+    @Test
+    void snapshotTest(@TempDir Path dir) throws IOException {
+        String prelude = """
+                class Shape {
+                    init(name) { this.name = name; }
+                    describe() { return this.name + " with area " + this.area(); }
+                }
+                class Square < Shape {
+                    init(side) { super.init("square"); this.side = side; }
+                    area() { return this.side * this.side; }
+                }
+                fun makeCounter() {
+                    var n = 0;
+                    fun inc() { n = n + 1; return n; }
+                    return inc;
+                }
+                var counter = makeCounter();
+                counter();
+                var describeUnit = Square(1).describe;
+                var greeting = "hello" + " " + "world";
+                class Node { init() { this.next = this; } }
+                var loop = Node();
+                var time = clock;
+                """;
+        String script = """
+                print counter();
+                print Square(3).describe();
+                print describeUnit();
+                print greeting;
+                print loop.next.next == loop;
+                print time == clock;
+                print Square;
+                """;
+        Interpreter first = newInterpreter();
+        Assertions.assertEquals("", interpret(first, prelude));
+        Path image = dir.resolve("prelude.image");
+        Snapshot.save(first, image);
+        String expected = interpret(first, script);
+        Assertions.assertEquals("2\nsquare with area 9\nsquare with area 1\nhello world\n" +
+                "true\ntrue\n<class Square>", expected.strip());
+
+        // a new interpreter starts where the prelude left off
+        Interpreter second = newInterpreter();
+        Snapshot.restore(image, second);
+        Assertions.assertEquals(expected, interpret(second, script));
+
+        // a save that fails leaves the image that was there
+        byte[] saved = Files.readAllBytes(image);
+        first.allowJava(StringBuilder.class);
+        interpret(first, "var builder = StringBuilder();");
+        Assertions.assertThrows(IOException.class, () -> Snapshot.save(first, image));
+        Assertions.assertArrayEquals(saved, Files.readAllBytes(image));
+        Assertions.assertArrayEquals(new String[] {"prelude.image"}, dir.toFile().list());
+
+        Files.write(image, new byte[] {0, 0, 0, 0});
+        Assertions.assertThrows(IOException.class, () -> Snapshot.restore(image, newInterpreter()));
+    }
+
+    @Test
+    void collectionSnapshotTest(@TempDir Path dir) throws IOException {
+        String prelude = """
+                var doubles = Array();
+                doubles.push(1.5);
+                doubles.push(2);
+                var integers = Array();
+                integers.push(9007199254740993L);
+                integers.push(-1L);
+                var mixed = Array();
+                mixed.push("one");
+                mixed.push(nil);
+                mixed.push(doubles);
+                mixed.push(mixed);
+                var map = Map();
+                map.set("name", "lox");
+                map.set(2, integers);
+                map.set(mixed, true);
+                map.set(true, map);
+                map.set("gone", 1);
+                map.remove("gone");
+                var origin = Vec3(1, -2, 0.5);
+                mixed.push(origin);
+                """;
+        String script = """
+                print doubles;
+                print integers;
+                print mixed.get(0) + " " + mixed.get(1) + " " + mixed.get(2);
+                print mixed.get(3) == mixed and mixed.get(2) == doubles;
+                print map.get("name") + " " + map.get(2.0) + " " + map.get(mixed) + " " + map.size();
+                print map.get(true) == map and map.has("gone");
+                print origin + " " + (mixed.get(4) == origin);
+                """;
+        Interpreter first = newInterpreter();
+        Assertions.assertEquals("", interpret(first, prelude));
+        Path image = dir.resolve("collections.image");
+        Snapshot.save(first, image);
+        String expected = interpret(first, script);
+        Assertions.assertEquals("[1.5, 2]\n[9007199254740993, -1]\none nil [1.5, 2]\ntrue\n" +
+                "lox [9007199254740993, -1] true 4\nfalse\nVec3(1, -2, 0.5) true",
+                expected.strip());
+
+        Interpreter second = newInterpreter();
+        Snapshot.restore(image, second);
+        Assertions.assertEquals(expected, interpret(second, script));
+    }
+
+    @Test
+    void isolateTest() throws Exception {
+        // each isolate has its own globals, output and errors, on many threads at once
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int id = i;
+                results.add(pool.submit(() -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    Isolate isolate = new Isolate(out, out);
+                    isolate.run("var id = " + id + "; class Box { init(v) { this.v = v; } }");
+                    isolate.run("""
+                            var total = 0;
+                            fun add(n) { total = total + n; }
+                            for (var i = 0; i < 1000; i = i + 1) add(Box(id).v);
+                            print "isolate " + id + ": " + total;
+                            """ + (id % 4 == 0 ? "nil();" : ""));
+                    Assertions.assertEquals(id % 4 == 0, isolate.hadRuntimeError());
+                    isolate.run("print 1 +;");
+                    Assertions.assertTrue(isolate.hadError());
+                    return out.toString();
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                String expected = "isolate " + i + ": " + i * 1000 + "\n" +
+                        (i % 4 == 0 ? "RuntimeError: Can only call functions and classes.\n[line5]\n" : "") +
+                        "[line 1] Error at ';': Expect expression.\n";
+                Assertions.assertEquals(expected, results.get(i).get().replace("\r", ""));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Assertions.assertFalse(Lox.hadError);
+    }
+
+    @Test
+    void loxEngineTest() {
+        LoxEngine engine = new LoxEngine(2);
+        String rule = """
+                if (score == nil) score = 0;
+                score = score + weight * 2;
+                print score;
+                """;
+        CompiledScript script = engine.compile(rule);
+        Assertions.assertSame(script, engine.compile(rule));
+
+        // the same compiled script runs against fresh or reused globals
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Isolate isolate = new Isolate(out, out);
+        isolate.run("var score; var weight = 1.5;");
+        script.run(isolate);
+        script.run(isolate);
+        Assertions.assertEquals("3\n6\n", out.toString());
+
+        ByteArrayOutputStream fresh = new ByteArrayOutputStream();
+        Isolate other = script.run(fresh, fresh);
+        Assertions.assertTrue(other.hadRuntimeError());
+        Assertions.assertTrue(fresh.toString().startsWith("RuntimeError: Undefined variable 'score'."));
+
+        // the least recently used script is dropped
+        engine.compile("print 1;");
+        engine.compile(rule);
+        engine.compile("print 2;");
+        Assertions.assertEquals(2, engine.cachedScripts());
+        Assertions.assertSame(script, engine.compile(rule));
+        Assertions.assertNotSame(engine.compile("print 1;"), engine.compile("print 2;"));
+
+        CompileError error = Assertions.assertThrows(CompileError.class,
+                () -> engine.compile("print 1 +;\nreturn 2;"));
+        Assertions.assertEquals(List.of("[line 1] Error at ';': Expect expression."), error.errors());
+        error = Assertions.assertThrows(CompileError.class, () -> engine.compile("return 2;"));
+        Assertions.assertEquals(List.of("[line 1] Error at 'return': Can't return from top-level code"),
+                error.errors());
+        Assertions.assertFalse(Lox.hadError);
+    }
+
+    public interface Scorer {
+        double score(double x, double y);
+    }
+
+    @Test
+    void scriptEngineTest() throws Exception {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("lox");
+        Assertions.assertNotNull(engine);
+        Assertions.assertEquals("Lox", engine.getFactory().getLanguageName());
+        StringWriter out = new StringWriter();
+        engine.getContext().setWriter(out);
+
+        // bindings are the globals
+        engine.put("base", 10);
+        engine.put("name", "jlox");
+        engine.eval("""
+                var greeting = "hello " + name;
+                fun score(x, y) { return base + x * y; }
+                class Counter {
+                    init() { this.n = 0; }
+                    inc(by) { this.n = this.n + by; return this.n; }
+                }
+                var counter = Counter();
+                print greeting;
+                """);
+        Assertions.assertEquals("hello jlox", engine.get("greeting"));
+        Assertions.assertEquals(10.0, engine.get("base"));
+
+        javax.script.CompiledScript bump = ((Compilable) engine).compile("base = base + 1; print base;");
+        bump.eval();
+        bump.eval();
+        Assertions.assertEquals("hello jlox\n11\n12\n", out.toString());
+
+        Invocable invocable = (Invocable) engine;
+        Assertions.assertEquals(18.0, invocable.invokeFunction("score", 2, 3));
+        Object counter = engine.get("counter");
+        invocable.invokeMethod(counter, "inc", 2);
+        Assertions.assertEquals(5.0, invocable.invokeMethod(counter, "inc", 3));
+        Assertions.assertEquals(22.0, invocable.getInterface(Scorer.class).score(2, 5));
+        Assertions.assertNull(invocable.getInterface(Runnable.class));
+        Assertions.assertThrows(NoSuchMethodException.class, () -> invocable.invokeFunction("missing"));
+
+        // other Bindings are copied in and out
+        Bindings bindings = new SimpleBindings();
+        bindings.put("x", 2);
+        engine.eval("var y = x * 21;", bindings);
+        Assertions.assertEquals(42.0, bindings.get("y"));
+
+        ScriptException error = Assertions.assertThrows(ScriptException.class, () -> engine.eval("nil();"));
+        Assertions.assertEquals(1, error.getLineNumber());
+        Assertions.assertThrows(ScriptException.class, () -> engine.eval("print 1 +;"));
+    }
+
+    public interface Weighted {
+        int weigh(String name, double weight, boolean heavy, Object extra);
+    }
+
+    /** A {@code Function<Object, Object>} that adapt() can return without an unchecked conversion. */
+    public interface Unary {
+        Object apply(Object argument);
+    }
+
+    @Test
+    void functionAdapterTest() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Isolate isolate = new Isolate(out, new ByteArrayOutputStream());
+        isolate.run("""
+                fun add(a, b) { return a + b; }
+                fun greet(name) { print "hi " + name; return "hello " + name; }
+                fun broken(x) { return x(); }
+                fun weigh(name, weight, heavy, extra) { if (heavy) return weight * 2; return weight; }
+                class Scale {
+                    init(k) { this.k = k; }
+                    apply(x) { return x * this.k; }
+                }
+                var triple = Scale(3).apply;
+                """);
+
+        DoubleBinaryOperator add = isolate.adapt(isolate.global("add"), DoubleBinaryOperator.class);
+        double sum = 0;
+        for (int i = 0; i < 1000; i++) { sum = add.applyAsDouble(sum, i); }
+        Assertions.assertEquals(499500.0, sum);
+
+        DoubleUnaryOperator triple = isolate.adapt(isolate.global("triple"), DoubleUnaryOperator.class);
+        Assertions.assertEquals(21.0, triple.applyAsDouble(7));
+
+        Unary greet = isolate.adapt(isolate.global("greet"), Unary.class);
+        Assertions.assertEquals("hello lox", greet.apply("lox"));
+        Assertions.assertEquals("hi lox\n", out.toString());
+
+        // more parameters than the generated adapters take
+        Weighted weigh = isolate.adapt(isolate.global("weigh"), Weighted.class);
+        Assertions.assertEquals(6, weigh.weigh("a", 3, true, null));
+
+        // classes are callable too
+        Unary scale = isolate.adapt(isolate.global("Scale"), Unary.class);
+        Assertions.assertTrue(scale.apply(2) instanceof LoxInstance);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> isolate.adapt(isolate.global("add"), DoubleUnaryOperator.class));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> isolate.adapt(isolate.global("add"), List.class));
+        Unary broken = isolate.adapt(isolate.global("broken"), Unary.class);
+        Assertions.assertThrows(RuntimeError.class, () -> broken.apply(1));
+    }
+
+    @Test
+    void javaInteropTest() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Isolate isolate = new Isolate(out, err);
+        isolate.allowJava(Math.class, ArrayList.class, java.util.Iterator.class, StringBuilder.class);
+        isolate.run("""
+                print Math.max(3, 4);
+                print Math.abs(-2.5);
+                print Math.PI > 3;
+                var list = ArrayList();
+                for (var i = 0; i < 5; i = i + 1) list.add(i * i);
+                print list.size();
+                print list.get(2);
+                print list;
+                var sum = 0;
+                var it = list.iterator();
+                while (it.hasNext()) sum = sum + it.next();
+                print sum;
+                fun descending(a, b) { return b - a; }
+                list.sort(descending);
+                print list;
+                var text = StringBuilder("lox");
+                text.append("!").append(1);
+                print text.toString() + " " + text.length();
+                """);
+        Assertions.assertEquals("", err.toString());
+        Assertions.assertEquals("4\n2.5\ntrue\n5\n4\n[0.0, 1.0, 4.0, 9.0, 16.0]\n30\n" +
+                "[16.0, 9.0, 4.0, 1.0, 0.0]\nlox!1.0 7\n", out.toString());
+
+        // the call sites cached above are shared with isolates that don't allow the classes
+        Isolate other = new Isolate(new ByteArrayOutputStream(), err);
+        other.run("print Math;");
+        Assertions.assertTrue(other.hadRuntimeError());
+        Assertions.assertTrue(err.toString().contains("Undefined variable 'Math'."), err.toString());
+
+        err.reset();
+        isolate.run("Math.max(\"a\", 1);");
+        Assertions.assertTrue(err.toString().contains("No overload of Math.max takes (string, number)."), err.toString());
+        err.reset();
+        isolate.run("list.get(10);");
+        Assertions.assertTrue(err.toString().contains("IndexOutOfBoundsException"), err.toString());
+        err.reset();
+        isolate.run("list.getClass().forName(\"java.lang.System\");");
+        Assertions.assertTrue(err.toString().contains("Only instances have properties."), err.toString());
+
+        // integral results are Lox integers, with every digit
+        out.reset();
+        err.reset();
+        isolate.allowJava(Long.class);
+        isolate.run("""
+                print Long.MAX_VALUE;
+                print Math.multiplyExact(3037000499L, 3037000499L);
+                print StringBuilder("lox").length() + 9007199254740992L;
+                """);
+        Assertions.assertEquals("", err.toString());
+        Assertions.assertEquals("9223372036854775807\n9223372030926249001\n9007199254740995\n",
+                out.toString());
+    }
+
+    @Test
+    void mathModuleTest() {
+        runDocTest("""
+                >>> print sqrt(16);
+                4
+                >>> print pow(2, 10);
+                1024
+                >>> print abs(-3) + min(1, 2) + max(1, 2);
+                6
+                >>> print abs(-9223372036854775807L) + " " + abs(1L << 63L);
+                9223372036854775807 -9223372036854775808
+                >>> print min(9007199254740993L, 9007199254740995L) + " " + max(-9007199254740993L, -9007199254740995L);
+                9007199254740993 -9007199254740993
+                >>> print min(2L, 1.5) + " " + max(2L, 1.5) + " " + abs(-2.5);
+                1.5 2 2.5
+                >>> print hypot(3, 4);
+                5
+                >>> print sin(0) + cos(0);
+                1
+                >>> print atan2(0, 1);
+                0
+                >>> print exp(0) + log(1) + log10(100);
+                3
+                >>> print fma(2, 3, 4);
+                10
+                >>> print ceil(1.2) + round(2.5) + trunc(-1.7);
+                4
+                >>> print floor(-1.5);
+                -1
+                """);
+        runAndComparePattern("""
+                sqrt("four");
+                """,
+                runtimeErrorPattern("sqrt argument must be double. got four"));
+    }
+
+    @Test
+    void arrayTest() {
+        runDocTest("""
+                >>> var a = Array();
+                ... for (var i = 0; i < 20; i = i + 1) a.push(i * 2);
+                ... print a.length();
+                20
+                >>> print a.get(19);
+                38
+                >>> a.set(0, "zero");
+                ... print a.get(0) + " " + a.get(1);
+                zero 2
+                >>> print a.pop();
+                38
+                >>> var b = Array();
+                ... var push = b.push;
+                ... push(1.5);
+                ... push(nil);
+                ... print b;
+                [1.5, nil]
+                >>> b.clear();
+                ... print b.length();
+                0
+                """);
+        runAndComparePattern("""
+                Array().get(0);
+                """,
+                runtimeErrorPattern("Array index 0 out of bounds for length 0."));
+        Lox.hadRuntimeError = false;
+        runAndComparePattern("""
+                Array().sort();
+                """,
+                runtimeErrorPattern("Undefined property 'sort'."));
+    }
+
+    @Test
+    void mapTest() {
+        runDocTest("""
+                >>> var m = Map();
+                ... m.set("a", 1);
+                ... m.set("b" + "", 2);
+                ... m.set(3, "three");
+                ... m.set(true, "yes");
+                ... print m.get("a") + m.get("b");
+                3
+                >>> print m.get(3) + " " + m.get(true) + " " + m.get("missing");
+                three yes nil
+                >>> m.set(-0, "zero");
+                ... print m.get(0) + " " + m.size();
+                zero 5
+                >>> class Point {}
+                ... var p = Point();
+                ... m.set(p, "point");
+                ... print m.get(p) + " " + m.has(Point());
+                point false
+                >>> print m.remove("a") + " " + m.remove("a") + " " + m.has("a");
+                true false false
+                >>> var squares = Map();
+                ... for (var i = 0; i < 100; i = i + 1) squares.set(i, i * i);
+                ... for (var i = 0; i < 100; i = i + 2) squares.remove(i);
+                ... var sum = 0;
+                ... var values = squares.values();
+                ... for (var i = 0; i < values.length(); i = i + 1) sum = sum + values.get(i);
+                ... print squares.size() + " " + sum + " " + squares.get(99);
+                50 166650 9801
+                """);
+        runAndComparePattern("""
+                Map().set(nil, 1);
+                """,
+                runtimeErrorPattern("Map keys can't be nil."));
+    }
+
+    @Test
+    void mapChurnTest() {
+        // set and remove in turn leave tombstones, which must not grow the table
+        LoxMap map = new LoxMap();
+        map.set(LoxString.valueOf("kept"), true);
+        for (int i = 0; i < 1_000_000; i++) {
+            map.set((double) i, i);
+            Assertions.assertTrue(map.remove((double) i));
+        }
+        Assertions.assertEquals(1, map.size());
+        Assertions.assertEquals(8, map.capacity());
+        Assertions.assertEquals(true, map.get(LoxString.valueOf("kept")));
+
+        for (int i = 0; i < 100; i++) { map.set((double) i, i); }
+        Assertions.assertEquals(101, map.size());
+        Assertions.assertEquals(99, map.get(99.0));
+    }
+
+    @Test
+    void vec3Test() {
+        runDocTest("""
+                >>> var a = Vec3(1, 2, 3);
+                ... var b = Vec3(4, 5, 6);
+                ... print a + b;
+                Vec3(5, 7, 9)
+                >>> print b - a;
+                Vec3(3, 3, 3)
+                >>> print a * b;
+                Vec3(4, 10, 18)
+                >>> print 2 * a / 4;
+                Vec3(0.5, 1, 1.5)
+                >>> print -a;
+                Vec3(-1, -2, -3)
+                >>> print a.dot(b) + " " + a.cross(b) + " " + (a.x + a.y + a.z);
+                32 Vec3(-3, 6, -3) 6
+                >>> print Vec3(3, 0, 4).length() + " " + Vec3(0, 0, 2).normalize();
+                5 Vec3(0, 0, 1)
+                >>> print Vec3(1, 2, 3) == a;
+                true
+                """);
+        runAndComparePattern("""
+                Vec3(1, 2, 3) - 1;
+                """,
+                runtimeErrorPattern("Operands must be a number"));
+    }
+
+    @Test
+    void integerTest() {
+        runDocTest("""
+                >>> print 7L ~/ 2L + " " + -7L ~/ 2L + " " + 7L % 3L + " " + 7L / 2L;
+                3 -3 1 3.5
+                >>> print 7.5 ~/ 2 + " " + 7.5 % 2;
+                3 1.5
+                >>> print (6L & 3L) + " " + (6L | 1L) + " " + (6L ^ 3L) + " " + (6 & 3);
+                2 7 5 2
+                >>> print (1L << 40L) + " " + (-16L >> 2L);
+                1099511627776 -4
+                >>> fun mix(x) { return x % 5L + x ~/ 2L + (x & 6L | 1L ^ 8L) + (x << 2L >> 1L); }
+                ... print mix(13L);
+                48
+                >>> print 12345678901L * 1000L;
+                12345678901000
+                >>> print 9223372036854775807L + 1L;
+                -9223372036854775808
+                >>> // FNV-1a of "hello"
+                ... var hash = -3750763034362895579L;
+                ... var bytes = Array();
+                ... bytes.push(104L); bytes.push(101L); bytes.push(108L); bytes.push(108L); bytes.push(111L);
+                ... for (var i = 0; i < bytes.length(); i = i + 1) {
+                ...     hash = (hash ^ bytes.get(i)) * 1099511628211L;
+                ... }
+                ... print hash;
+                -6615550055289275125
+                >>> print 1L == 1 and 1L + 0.5 == 1.5 and 2L > 1.5;
+                true
+                >>> var big = 9007199254740993L;
+                ... var near = 9007199254740992.0;
+                ... print (big == near) + " " + (big > near) + " " + (near < big) + " " + (big <= near);
+                false true true false
+                >>> print (-2L < -1.5) + " " + (-1L > -1.5) + " " + (3L >= 3.0) + " " + (1L < sqrt(-1));
+                true true true false
+                >>> var m = Map();
+                ... m.set(1L, "one");
+                ... print m.get(1) + " " + sqrt(16L);
+                one 4
+                >>> var b = 1L << 60L;
+                ... m.set(b, "b");
+                ... m.set(b + 1L, "b+1");
+                ... print (b == 1152921504606846976) + " " + m.get(1152921504606846976) + " " + m.get(b + 1L);
+                true b b+1
+                >>> var min = 1L << 63L;
+                ... m.set(min, "min");
+                ... print m.get(-9223372036854775808) + " " + m.get(-9223372036854775807L) + " " + m.size();
+                min nil 4
+                >>> var a = Array();
+                ... a.push(9007199254740993L);
+                ... a.push(2L);
+                ... a.push(3L);
+                ... print a.get(0) + " " + (a.length() + 9007199254740992L) + " " +
+                ...     (m.size() + 9007199254740992L);
+                9007199254740993 9007199254740995 9007199254740996
+                >>> a.push(0.5);
+                ... print a;
+                [9007199254740993, 2, 3, 0.5]
+                """);
+        runAndComparePattern("""
+                print 1.5 & 1;
+                """,
+                runtimeErrorPattern("Operands must be integers."));
+        Lox.hadRuntimeError = false;
+        runAndComparePattern("""
+                print 1L ~/ 0L;
+                """,
+                runtimeErrorPattern("Divisor cannot be zero."));
+    }
+
+    @Test
+    void structTest() {
+        runDocTest("""
+                >>> fun pair(a, b) { struct Pair { a, b } return Pair(a, b); }
+                ... print pair(1, 2);
+                Pair(a: 1, b: 2)
+                >>> fun length(p) { return sqrt(p.x * p.x + p.y * p.y); }
+                ... struct Point { x, y }
+                ... var p = Point(3, 4);
+                ... print length(p);
+                5
+                >>> p.x = "three";
+                ... print p;
+                Point(x: three, y: 4)
+                >>> p.x = nil;
+                ... print p.x;
+                nil
+                >>> p.x = 6;
+                ... print p.x + p.y;
+                10
+                >>> struct Labeled { label, x }
+                ... var l = Labeled("a", 1);
+                ... print l.x + " " + p.x + " " + Point;
+                1 6 <struct Point>
+                """);
+        runAndComparePattern("""
+                struct Point { x, y }
+                Point(1, 2).z = 3;
+                """,
+                runtimeErrorPattern("Struct Point has no field 'z'."));
+        Lox.hadRuntimeError = false;
+        runAndComparePattern("""
+                struct Point { x, y }
+                print Point(1, 2).z;
+                """,
+                runtimeErrorPattern("Undefined property 'z'."));
+        Lox.hadRuntimeError = false;
+        runAndComparePattern("""
+                struct Point { x, x }
+                """,
+                errorPattern("Already a field with this name in this struct."));
+    }
+
+    /** A channel that keeps each write apart, to see when the buffer writes. */
+    private static class RecordingChannel implements WritableByteChannel {
+        final List<byte[]> writes = Collections.synchronizedList(new ArrayList<>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public int write(ByteBuffer src) {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            writes.add(bytes);
+            threads.add(Thread.currentThread().getName());
+            return bytes.length;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() {}
+
+        String text() {
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            synchronized (writes) { writes.forEach(all::writeBytes); }
+            return all.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void outputBufferExitPolicyTest() {
+        RecordingChannel channel = new RecordingChannel();
+        OutputBuffer out = new OutputBuffer(channel, OutputBuffer.FlushPolicy.EXIT, 16, false);
+        String line = "0123456789".repeat(10);
+        out.print(line);
+        out.println();
+        out.print(line);
+        // EXIT grows the buffer past its capacity rather than writing early
+        Assertions.assertEquals(0, channel.writes.size());
+        out.flush();
+        Assertions.assertEquals(1, channel.writes.size());
+        Assertions.assertEquals(line + System.lineSeparator() + line, channel.text());
+    }
+
+    @Test
+    void outputBufferSizePolicyTest() {
+        RecordingChannel channel = new RecordingChannel();
+        OutputBuffer out = new OutputBuffer(channel, OutputBuffer.FlushPolicy.SIZE, 16, false);
+        out.print("short");
+        out.println();
+        Assertions.assertEquals(0, channel.writes.size());
+        String line = "0123456789".repeat(5);
+        out.print(line);
+        Assertions.assertFalse(channel.writes.isEmpty());
+        for (byte[] write : channel.writes) {
+            Assertions.assertTrue(write.length <= 16);
+        }
+        out.flush();
+        Assertions.assertEquals("short" + System.lineSeparator() + line, channel.text());
+    }
+
+    @Test
+    void outputBufferNewlinePolicyTest() {
+        RecordingChannel channel = new RecordingChannel();
+        OutputBuffer out = new OutputBuffer(channel, OutputBuffer.FlushPolicy.NEWLINE, 1024, false);
+        out.print("a");
+        out.print(1.5);
+        Assertions.assertEquals(0, channel.writes.size());
+        out.println();
+        Assertions.assertEquals(1, channel.writes.size());
+        Assertions.assertEquals("a1.5" + System.lineSeparator(), channel.text());
+        out.print("b");
+        out.println();
+        Assertions.assertEquals(2, channel.writes.size());
+    }
+
+    @Test
+    void outputBufferAsyncTest() {
+        RecordingChannel channel = new RecordingChannel();
+        OutputBuffer out = new OutputBuffer(channel, OutputBuffer.FlushPolicy.SIZE, 16, true);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            out.print("line " + i);
+            out.println();
+            expected.append("line ").append(i).append(System.lineSeparator());
+        }
+        out.close();
+        // every write lands, in order, and none on the printing thread
+        Assertions.assertEquals(expected.toString(), channel.text());
+        Assertions.assertFalse(channel.threads.isEmpty());
+        for (String thread : channel.threads) {
+            Assertions.assertEquals("lox-output", thread);
+        }
+    }
+
+    @Test
+    void outputBufferUtf8Test() {
+        String text = "caf\u00e9 \u20ac \ud83d\ude00 \u65e5\u672c";
+        for (int capacity : new int[] { 4, 5, 6, 7, 1024 }) {
+            RecordingChannel channel = new RecordingChannel();
+            OutputBuffer out = new OutputBuffer(channel, OutputBuffer.FlushPolicy.SIZE, capacity, false);
+            for (int i = 0; i < 3; i++) { out.print(text); }
+            out.flush();
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            channel.writes.forEach(all::writeBytes);
+            Assertions.assertArrayEquals(text.repeat(3).getBytes(StandardCharsets.UTF_8), all.toByteArray(),
+                    "capacity " + capacity);
+        }
+    }
+
+    @Test
+    void outputBeforeErrorTest() {
+        // out and err share a stream, so its order is the order of the writes
+        ByteArrayOutputStream both = new ByteArrayOutputStream();
+        Isolate isolate = new Isolate(both, both);
+        isolate.run("""
+                print "before";
+                nil();
+                """);
+        Assertions.assertTrue(isolate.hadRuntimeError());
+        String text = both.toString(StandardCharsets.UTF_8);
+        int before = text.indexOf("before");
+        int error = text.indexOf("Can only call functions and classes.");
+        Assertions.assertTrue(before >= 0 && error > before, text);
+    }
+}
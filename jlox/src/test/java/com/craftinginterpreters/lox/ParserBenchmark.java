@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the Parser on large machine generated expressions. Not run by the
+ * tests; after mvn test-compile run it with
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes com.craftinginterpreters.lox.ParserBenchmark
+ * </pre>
+ *
+ * The source is scanned once and parsed repeatedly, so the times are for
+ * the parser alone.
+ */
+class ParserBenchmark {
+    private static final String[] BINARY = {
+        "+", "-", "*", "/", "==", "!=", "<", "<=", ">", ">=", "and", "or"
+    };
+
+    private final Random random = new Random(42);
+    private final StringBuilder out = new StringBuilder();
+
+    public static void main(String[] args) {
+        ParserBenchmark benchmark = new ParserBenchmark();
+        benchmark.run("mixed expressions", benchmark.expressions(20_000, 6));
+        benchmark.run("deep expressions", benchmark.expressions(200, 14));
+        benchmark.run("single literals", benchmark.literals(200_000));
+    }
+
+    private void run(String name, String source) {
+        TokenBuffer tokens = new Scanner(source).scanTokens();
+        // warm up, then keep the best of several runs
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 30; i++) {
+            long start = System.nanoTime();
+            List<Stmt> statements = new Parser(tokens).parse();
+            long time = System.nanoTime() - start;
+            if (statements.isEmpty() || Lox.hadError) { throw new IllegalStateException(name); }
+            if (i >= 10) { best = Math.min(best, time); }
+        }
+        System.out.printf("%-18s %9d tokens %8.2f ms %6.1f ns/token%n",
+                name, tokens.size(), best / 1e6, (double) best / tokens.size());
+    }
+
+    /** count print statements of random expressions up to depth deep */
+    private String expressions(int count, int depth) {
+        out.setLength(0);
+        for (int i = 0; i < count; i++) {
+            out.append("print ");
+            expression(depth);
+            out.append(";\n");
+        }
+        return out.toString();
+    }
+
+    private String literals(int count) {
+        out.setLength(0);
+        for (int i = 0; i < count; i++) {
+            out.append("print ").append(i).append(";\n");
+        }
+        return out.toString();
+    }
+
+    private void expression(int depth) {
+        if (depth == 0) {
+            primary();
+            return;
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+            case 1:
+            case 2:
+                expression(depth - 1);
+                out.append(' ').append(BINARY[random.nextInt(BINARY.length)]).append(' ');
+                expression(depth - 1);
+                break;
+            case 3:
+                out.append(random.nextBoolean() ? "-" : "!");
+                expression(depth - 1);
+                break;
+            case 4:
+                out.append('(');
+                expression(depth - 1);
+                out.append(')');
+                break;
+            default:
+                out.append("f").append(random.nextInt(10)).append('(');
+                expression(depth - 1);
+                out.append(", ");
+                expression(depth - 1);
+                out.append(").x");
+                break;
+        }
+    }
+
+    private void primary() {
+        switch (random.nextInt(4)) {
+            case 0: out.append(random.nextInt(1000)); break;
+            case 1: out.append("\"s\""); break;
+            case 2: out.append("true"); break;
+            default: out.append("v").append(random.nextInt(100)); break;
+        }
+    }
+}